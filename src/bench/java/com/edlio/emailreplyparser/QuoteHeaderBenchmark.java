@@ -0,0 +1,99 @@
+package com.edlio.emailreplyparser;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Matching the paragraphs of the fixtures against the quote header rules: with the lazy DFA of
+ * {@link QuoteHeaderMatcher}, against the {@link Pattern} alternation of the same rules, with
+ * the default rules alone and with the rules of every locale pack.
+ *
+ * Run from the project directory with <code>mvn -P benchmarks test-compile exec:exec -Dbenchmark=QuoteHeaderBenchmark</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QuoteHeaderBenchmark {
+	@Param({ "", "da,de,en,es,fr,no,sv" })
+	public String locales;
+
+	// The paragraphs of up to six lines of the fixtures.
+	private String[] paragraphs;
+	private QuoteHeaderMatcher matcher;
+	private Matcher[] matchers;
+	private LinearMatcher.Scratch scratch;
+	private Matcher alternation;
+
+	@Setup
+	public void setUp() throws IOException {
+		List<String> rules = new ArrayList<String>(EmailParser.DEFAULT_QUOTE_HEADERS_REGEX);
+		for (String language : locales.split(",")) {
+			if (language.isEmpty())
+				continue;
+			rules.addAll(LocalePack.forLanguage(language).getQuoteHeaders());
+			rules.addAll(LocalePack.forLanguage(language).getSeparators());
+		}
+		List<String> found = new ArrayList<String>();
+		for (String fixture : new File("src/test/fixtures").list()) {
+			String content = new String(Files.readAllBytes(Paths.get("src/test/fixtures", fixture)), StandardCharsets.UTF_8);
+			for (String paragraph : content.split("\n\\s*\n")) {
+				if (paragraph.split("\n").length <= EmailParser.DEFAULT_MAX_PARAGRAPH_LINES)
+					found.add(paragraph);
+			}
+		}
+		paragraphs = found.toArray(new String[found.size()]);
+		matcher = new QuoteHeaderMatcher(rules);
+		matchers = matcher.newMatchers();
+		scratch = new LinearMatcher.Scratch();
+		StringBuilder combined = new StringBuilder();
+		for (String rule : rules) {
+			if (combined.length() > 0)
+				combined.append('|');
+			combined.append('(').append(rule).append(')');
+		}
+		alternation = Pattern.compile(combined.toString(), QuoteHeaderMatcher.FLAGS).matcher("");
+	}
+
+	@Benchmark
+	public int automaton() {
+		int count = 0;
+		for (String paragraph : paragraphs) {
+			if (matcher.find(paragraph, matchers, scratch) != -1)
+				count++;
+		}
+		return count;
+	}
+
+	@Benchmark
+	public int patternAlternation() {
+		int count = 0;
+		for (String paragraph : paragraphs) {
+			if (alternation.reset(paragraph).find())
+				count++;
+		}
+		return count;
+	}
+}
@@ -0,0 +1,110 @@
+package com.edlio.emailreplyparser;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Finding the lines of a large body: the search {@link Lines#scan(CharSequence)} does, 
+ * against reading one char or byte at a time, and the whole parse for scale.
+ * 
+ * Run from the project directory with <code>mvn -P benchmarks test-compile exec:exec -Dbenchmark=ScanBenchmark</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScanBenchmark {
+	@Param({ "email_abnormal_quote_header_long.txt" })
+	public String fixture;
+	
+	@Param({ "LF", "CRLF" })
+	public String lineBreaks;
+	
+	private String text;
+	private ByteBuffer utf8;
+	private EmailParser parser;
+	
+	@Setup
+	public void setUp() throws IOException {
+		String content = new String(Files.readAllBytes(Paths.get("src/test/fixtures", fixture)), StandardCharsets.UTF_8);
+		content = content.replace("\r\n", "\n");
+		text = "CRLF".equals(lineBreaks) ? content.replace("\n", "\r\n") : content;
+		utf8 = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+		parser = new EmailParser();
+	}
+	
+	@Benchmark
+	public int scanString() {
+		return Lines.scan(text).count();
+	}
+	
+	/**
+	 * The same scan, reading one char at a time.
+	 */
+	@Benchmark
+	public int scanStringCharByChar() {
+		Lines lines = new Lines(text, 16);
+		int start = 0;
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c != '\n' && c != '\r')
+				continue;
+			lines.add(start, i);
+			if (c == '\r' && i + 1 < text.length() && text.charAt(i + 1) == '\n')
+				i++;
+			start = i + 1;
+		}
+		lines.add(start, text.length());
+		return lines.count();
+	}
+	
+	@Benchmark
+	public int searchUtf8() {
+		int count = 0;
+		for (int i = Utf8Text.indexOfLineBreak(utf8, 0, utf8.limit()); i != -1; i = Utf8Text.indexOfLineBreak(utf8, i + 1, utf8.limit()))
+			count++;
+		return count;
+	}
+	
+	/**
+	 * The same search, reading one byte at a time.
+	 */
+	@Benchmark
+	public int searchUtf8ByteByByte() {
+		int count = 0;
+		for (int i = 0; i < utf8.limit(); i++) {
+			byte b = utf8.get(i);
+			if (b == '\n' || b == '\r')
+				count++;
+		}
+		return count;
+	}
+	
+	@Benchmark
+	public int scanUtf8() {
+		return Lines.scan(new Utf8Text(utf8, 0, utf8.limit())).count();
+	}
+	
+	@Benchmark
+	public Email parse() {
+		return parser.parse(text);
+	}
+}
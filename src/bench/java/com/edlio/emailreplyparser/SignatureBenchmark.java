@@ -0,0 +1,104 @@
+package com.edlio.emailreplyparser;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Telling signature and quoted lines apart: from their first characters, as {@link Lines} does,
+ * against matching {@link EmailParser#SIG_PATTERN} and the quote pattern the parser used to match.
+ *
+ * Run from the project directory with <code>mvn -P benchmarks test-compile exec:exec -Dbenchmark=SignatureBenchmark</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SignatureBenchmark {
+	private static final Pattern QUOTE_PATTERN = Pattern.compile("(^>+)");
+
+	@Param({ "email_abnormal_quote_header_long.txt" })
+	public String fixture;
+
+	// The lines that are not blank, as the parser reads them.
+	private String[] lines;
+	private Matcher signatureMatcher;
+	private Matcher sentFromMatcher;
+	private Matcher quoteMatcher;
+
+	@Setup
+	public void setUp() throws IOException {
+		String content = new String(Files.readAllBytes(Paths.get("src/test/fixtures", fixture)), StandardCharsets.UTF_8);
+		Lines scanned = Lines.scan(content);
+		List<String> nonBlank = new ArrayList<String>();
+		for (int i = 0; i < scanned.count(); i++) {
+			if (!scanned.isEmpty(i))
+				nonBlank.add(scanned.line(i).toString());
+		}
+		lines = nonBlank.toArray(new String[nonBlank.size()]);
+		signatureMatcher = EmailParser.SIG_PATTERN.matcher("");
+		sentFromMatcher = EmailParser.SENT_FROM_PATTERN.matcher("");
+		quoteMatcher = QUOTE_PATTERN.matcher("");
+	}
+
+	@Benchmark
+	public int signatureClass() {
+		int count = 0;
+		for (String line : lines) {
+			int signatureClass = Lines.signatureClass(line, 0, line.length());
+			if (signatureClass == Lines.SIGNATURE || (signatureClass == Lines.SENT_FROM && sentFromMatcher.reset(line).find()))
+				count++;
+		}
+		return count;
+	}
+
+	@Benchmark
+	public int signaturePattern() {
+		int count = 0;
+		for (String line : lines) {
+			if (signatureMatcher.reset(line).find())
+				count++;
+		}
+		return count;
+	}
+
+	@Benchmark
+	public int quoteFirstChar() {
+		int count = 0;
+		for (String line : lines) {
+			if (line.charAt(0) == '>')
+				count++;
+		}
+		return count;
+	}
+
+	@Benchmark
+	public int quotePattern() {
+		int count = 0;
+		for (String line : lines) {
+			if (quoteMatcher.reset(line).find())
+				count++;
+		}
+		return count;
+	}
+}
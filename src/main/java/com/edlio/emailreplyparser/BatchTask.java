@@ -0,0 +1,72 @@
+package com.edlio.emailreplyparser;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Parses a range of a batch of emails on a {@link ForkJoinPool}.
+ *
+ * The range is split in halves until it is small enough to leave several runs per worker,
+ * so idle workers can steal the rest. A run is parsed in order, with one set of line arrays.
+ */
+class BatchTask extends RecursiveAction {
+	private static final long serialVersionUID = 1L;
+	// Runs per worker, so the work stays balanced when emails differ in size.
+	private static final int RUNS_PER_WORKER = 8;
+
+	private final EmailParser parser;
+	private final CharSequence[] emailTexts;
+	private final boolean repliesOnly;
+	private final Object[] results;
+	private final int from;
+	private final int to;
+	private final int runLength;
+
+	private BatchTask(EmailParser parser, CharSequence[] emailTexts, boolean repliesOnly, Object[] results, int from, int to, int runLength) {
+		this.parser = parser;
+		this.emailTexts = emailTexts;
+		this.repliesOnly = repliesOnly;
+		this.results = results;
+		this.from = from;
+		this.to = to;
+		this.runLength = runLength;
+	}
+
+	/**
+	 * Parses the emails on the pool and returns the emails, or their visible text if repliesOnly,
+	 * in the order of the list.
+	 *
+	 * @param parser
+	 * @param emailTexts
+	 * @param repliesOnly
+	 * @param pool
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	static <T> List<T> run(EmailParser parser, List<? extends CharSequence> emailTexts, boolean repliesOnly, ForkJoinPool pool) {
+		// An array, as the list may not have fast random access.
+		CharSequence[] texts = emailTexts.toArray(new CharSequence[emailTexts.size()]);
+		Object[] results = new Object[texts.length];
+		if (texts.length > 0) {
+			int runLength = Math.max(1, texts.length / (pool.getParallelism() * RUNS_PER_WORKER));
+			pool.invoke(new BatchTask(parser, texts, repliesOnly, results, 0, texts.length, runLength));
+		}
+		return (List<T>) Collections.unmodifiableList(Arrays.asList(results));
+	}
+
+	@Override
+	protected void compute() {
+		if (to - from <= runLength) {
+			ParseContext context = new ParseContext();
+			for (int i = from; i < to; i++)
+				results[i] = repliesOnly ? parser.parseReply(emailTexts[i], context) : parser.parse(emailTexts[i], context);
+			return;
+		}
+		int middle = (from + to) >>> 1;
+		invokeAll(new BatchTask(parser, emailTexts, repliesOnly, results, from, middle, runLength),
+				new BatchTask(parser, emailTexts, repliesOnly, results, middle, to, runLength));
+	}
+}
@@ -0,0 +1,128 @@
+package com.edlio.emailreplyparser;
+
+/**
+ * Time budget of a single parse.
+ *
+ * The parser calls {@link #check()} between lines, and hands the regular expressions
+ * {@link #guard(CharSequence) guarded} text whose charAt checks the clock every few hundred
+ * characters, so a slow match is interrupted too and not only the loop around it.
+ * Both throw {@link ExceededException} once the budget is spent.
+ *
+ * A yielding deadline also calls {@link Thread#yield()} every few thousand checks, so a long
+ * parse on a virtual thread lets the other virtual threads on its carrier run.
+ */
+class Deadline {
+	/** A deadline that never expires. */
+	static final Deadline NONE = new Deadline(0);
+
+	// Characters read through guarded text between two looks at the clock.
+	private static final int CHECK_INTERVAL = 256;
+	// Checks between two yields: thousands of lines, or a million characters of matching.
+	private static final int YIELD_INTERVAL = 4096;
+
+	private final boolean bounded;
+	private final long deadline;
+	private final boolean yielding;
+	private int countdown = CHECK_INTERVAL;
+	private int checks;
+
+	private Deadline(long timeoutNanos) {
+		this(timeoutNanos, false);
+	}
+
+	private Deadline(long timeoutNanos, boolean yielding) {
+		this.bounded = timeoutNanos > 0;
+		this.deadline = System.nanoTime() + timeoutNanos;
+		this.yielding = yielding;
+	}
+
+	/**
+	 * Returns a deadline expiring timeoutNanos from now, or {@link #NONE} if timeoutNanos is not positive.
+	 *
+	 * @param timeoutNanos
+	 * @return
+	 */
+	static Deadline after(long timeoutNanos) {
+		return timeoutNanos > 0 ? new Deadline(timeoutNanos) : NONE;
+	}
+
+	/**
+	 * Returns a deadline expiring timeoutNanos from now, if timeoutNanos is positive,
+	 * that yields the thread now and then if yielding is true.
+	 *
+	 * @param timeoutNanos
+	 * @param yielding
+	 * @return
+	 */
+	static Deadline after(long timeoutNanos, boolean yielding) {
+		return yielding ? new Deadline(timeoutNanos, true) : after(timeoutNanos);
+	}
+
+	/**
+	 * Throws {@link ExceededException} if the deadline has passed.
+	 */
+	void check() {
+		if (yielding && ++checks == YIELD_INTERVAL) {
+			checks = 0;
+			Thread.yield();
+		}
+		// Compare the difference, System.nanoTime() may overflow.
+		if (bounded && System.nanoTime() - deadline > 0)
+			throw new ExceededException();
+	}
+
+	/**
+	 * Returns a view of the text that checks the deadline while it is being read.
+	 *
+	 * @param text
+	 * @return
+	 */
+	CharSequence guard(CharSequence text) {
+		return bounded || yielding ? new Guarded(text) : text;
+	}
+
+	private void tick() {
+		if (--countdown == 0) {
+			countdown = CHECK_INTERVAL;
+			check();
+		}
+	}
+
+	private final class Guarded implements CharSequence {
+		private final CharSequence text;
+
+		Guarded(CharSequence text) {
+			this.text = text;
+		}
+
+		public int length() {
+			return text.length();
+		}
+
+		public char charAt(int index) {
+			tick();
+			return text.charAt(index);
+		}
+
+		public CharSequence subSequence(int start, int end) {
+			return new Guarded(text.subSequence(start, end));
+		}
+
+		@Override
+		public String toString() {
+			return text.toString();
+		}
+	}
+
+	/**
+	 * Thrown when a parse runs out of time. It never leaves {@link EmailParser}.
+	 */
+	static class ExceededException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		ExceededException() {
+			// Thrown on a hot path and always caught: skip the stack trace.
+			super(null, null, false, false);
+		}
+	}
+}
@@ -1,37 +1,166 @@
 package com.edlio.emailreplyparser;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
-import org.apache.commons.lang3.StringUtils;
-
 public class Email {
-	private List<Fragment> fragments = new ArrayList<Fragment>();
-	
+	private final List<Fragment> fragments;
+	private boolean truncated;
+	// Built on first use. A race only builds the same string twice.
+	private String visibleText;
+	private String hiddenText;
+
 	public Email(List<Fragment> fragments) {
-		this.fragments.addAll(fragments);
+		this(fragments, false);
+	}
+
+	public Email(List<Fragment> fragments, boolean truncated) {
+		this.fragments = Collections.unmodifiableList(new ArrayList<Fragment>(fragments));
+		this.truncated = truncated;
 	}
-	
+
+	/**
+	 * Returns the fragments, from the top of the email to the bottom.
+	 *
+	 * @return an unmodifiable list
+	 */
 	public List<Fragment> getFragments() {
 		return fragments;
 	}
-	
+
 	public String getVisibleText() {
-		List<String> visibleFragments = new ArrayList<String>();
-		for (Fragment fragment : fragments) {
-			if (!fragment.isHidden())
-				visibleFragments.add(fragment.getContent());
+		String text = visibleText;
+		if (text == null) {
+			text = buildText(false);
+			visibleText = text;
 		}
-		return StringUtils.stripEnd(StringUtils.join(visibleFragments,"\n"), null);
+		return text;
 	}
-	
+
 	public String getHiddenText() {
-		List<String> hiddenFragments = new ArrayList<String>();
+		String text = hiddenText;
+		if (text == null) {
+			text = buildText(true);
+			hiddenText = text;
+		}
+		return text;
+	}
+
+	/**
+	 * Writes the visible text, as returned by {@link #getVisibleText()}, to out.
+	 * The fragments are copied straight into out, without building the text first.
+	 *
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeVisibleText(Appendable out) throws IOException {
+		if (visibleText != null)
+			out.append(visibleText);
+		else
+			writeText(out, false);
+	}
+
+	/**
+	 * Writes the hidden text, as returned by {@link #getHiddenText()}, to out.
+	 * The fragments are copied straight into out, without building the text first.
+	 *
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeHiddenText(Appendable out) throws IOException {
+		if (hiddenText != null)
+			out.append(hiddenText);
+		else
+			writeText(out, true);
+	}
+
+	/**
+	 * Tells if the parser ran out of time before classifying every line.
+	 * The lines it did not get to are in the first fragment, which is visible.
+	 *
+	 * @return
+	 */
+	public boolean isTruncated() {
+		return truncated;
+	}
+
+	private String buildText(boolean hidden) {
+		StringBuilder sb = new StringBuilder();
+		try {
+			writeText(sb, hidden);
+		} catch (IOException e) {
+			// StringBuilder does not throw.
+			throw new IllegalStateException(e);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Writes the content of the hidden or visible fragments, joined by "\n",
+	 * without trailing whitespace.
+	 *
+	 * @param out
+	 * @param hidden
+	 * @throws IOException
+	 */
+	private void writeText(Appendable out, boolean hidden) throws IOException {
+		StripEnd stripped = new StripEnd(out);
+		boolean first = true;
 		for (Fragment fragment : fragments) {
-			if (fragment.isHidden())
-				hiddenFragments.add(fragment.getContent());
+			if (fragment.isHidden() != hidden)
+				continue;
+			if (!first)
+				stripped.append('\n');
+			fragment.writeContent(stripped);
+			first = false;
+		}
+	}
+
+	/**
+	 * Holds back whitespace until something else is written after it,
+	 * so whitespace at the very end never reaches the underlying {@link Appendable}.
+	 */
+	private static class StripEnd implements Appendable {
+		private final Appendable out;
+		private final StringBuilder pending = new StringBuilder();
+
+		StripEnd(Appendable out) {
+			this.out = out;
+		}
+
+		public Appendable append(CharSequence csq) throws IOException {
+			return append(csq, 0, csq.length());
+		}
+
+		public Appendable append(CharSequence csq, int start, int end) throws IOException {
+			int last = end;
+			while (last > start && Character.isWhitespace(csq.charAt(last - 1)))
+				last--;
+			if (last > start) {
+				flush();
+				out.append(csq, start, last);
+			}
+			pending.append(csq, last, end);
+			return this;
+		}
+
+		public Appendable append(char c) throws IOException {
+			if (Character.isWhitespace(c)) {
+				pending.append(c);
+			} else {
+				flush();
+				out.append(c);
+			}
+			return this;
+		}
+
+		private void flush() throws IOException {
+			if (pending.length() > 0) {
+				out.append(pending);
+				pending.setLength(0);
+			}
 		}
-		return StringUtils.stripEnd(StringUtils.join(hiddenFragments,"\n"), null);
 	}
-	
 }
@@ -1,151 +1,1055 @@
 package com.edlio.emailreplyparser;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 import java.util.regex.Pattern;
 
-import org.apache.commons.lang3.ArrayUtils;
-import org.apache.commons.lang3.StringUtils;
+import javax.mail.MessagingException;
+import javax.mail.Part;
 
 
 
 public class EmailParser {
 	
+	// The signature rule. Lines decides all of it from the first characters of a line but
+	// "Sent from my ...", which is matched with SENT_FROM_PATTERN.
 	static final Pattern SIG_PATTERN = Pattern.compile( "((^Sent from my (\\s*\\w+){1,3}$)|(^-\\w|^\\s?__|^\\s?--|^\u2013|^\u2014))", Pattern.DOTALL);
-	static final Pattern QUOTE_PATTERN = Pattern.compile("(^>+)", Pattern.DOTALL);
-	private static List<Pattern> compiledQuoteHeaderPatterns;
+	static final Pattern SENT_FROM_PATTERN = Pattern.compile("^Sent from my (\\s*\\w+){1,3}$", Pattern.DOTALL);
+	static final List<String> DEFAULT_QUOTE_HEADERS_REGEX = Collections.unmodifiableList(Arrays.asList(
+			"^(On\\s(.{1,500})wrote:)",
+			"^((Den\\s){0,1}(.{1,500})(skrev|([A-Za-z0-9._%+-]+@[A-Za-z0-9.-]+\\.[A-Za-z]{2,4})).*?)",
+			"^([0-9]{4}\\/|-[0-9]{1,2}\\/|-[0-9]{1,2}.*?)",
+			"From:[^\\n]+\\n?([^\\n]+\\n?){0,2}To:[^\\n]+\\n?([^\\n]+\\n?){0,2}Subject:[^\\n]+",
+			"Fra:[^\\n]+\\n?([^\\n]+\\n?){0,2}Til:[^\\n]+\\n?([^\\n]+\\n?){0,2}Emne:[^\\n]+",
+			"To:[^\\n]+\\n?([^\\n]+\\n?){0,2}From:[^\\n]+\\n?([^\\n]+\\n?){0,2}Subject:[^\\n]+",
+			"Til:[^\\n]+\\n?([^\\n]+\\n?){0,2}Fra:[^\\n]+\\n?([^\\n]+\\n?){0,2}Emne:[^\\n]+",
+			"^-----Opprinnelig melding-----"));
+	static final int DEFAULT_MAX_PARAGRAPH_LINES = 6;
+	static final int DEFAULT_MAX_NUM_CHARS_EACH_LINE = 200;
 	
-	private List<String> quoteHeadersRegex = new ArrayList<String>();
-	private List<FragmentDTO> fragments = new ArrayList<FragmentDTO>();
-	private int maxParagraphLines;
-	private int maxNumCharsEachLine;
+	// How a blank line closes the fragment below it, when reading from a stream.
+	private static final int UNDECIDED = -1;
+	private static final int NO_CUT = 0;
+	private static final int SIGNATURE_CUT = 1;
+	private static final int QUOTE_HEADER_CUT = 2;
+	// Lines held before a stream is also cut at quoted lines, when hidden fragments are discarded.
+	private static final int STREAM_SEGMENT_LINES = 256;
+	
+	private final List<String> quoteHeadersRegex;
+	private final List<String> locales;
+	// The quote headers regular expressions and those of the locale packs.
+	private final QuoteHeaderMatcher quoteHeaderMatcher;
+	// Null unless a locale pack has signature rules.
+	private final QuoteHeaderMatcher localeSignatureMatcher;
+	private final int maxParagraphLines;
+	private final int maxNumCharsEachLine;
+	private final RegexEngine regexEngine;
+	private final long timeoutNanos;
+	// Null for the default executor of the async parses.
+	private final Executor executor;
+	// Null unless the linear time engine is used.
+	private final LinearMatcher signatureMatcher;
+	// Null unless results are cached.
+	private final ParseCache cache;
+	// Tells configurations that give different results apart in the cache.
+	private final long fingerprint;
 	
 	
 	/**
-	 * Initialize EmailParser.
+	 * Initialize EmailParser with the default quote headers and paragraph limits.
 	 */
 	public EmailParser() {
-		compiledQuoteHeaderPatterns = new ArrayList<Pattern>();
-		quoteHeadersRegex.add("^(On\\s(.{1,500})wrote:)");
-
-        quoteHeadersRegex.add("^((Den\\s){0,1}(.{1,500})(skrev|([A-Za-z0-9._%+-]+@[A-Za-z0-9.-]+\\.[A-Za-z]{2,4})).*?)");
-		quoteHeadersRegex.add("^([0-9]{4}\\/|-[0-9]{1,2}\\/|-[0-9]{1,2}.*?)");
-		quoteHeadersRegex.add("From:[^\\n]+\\n?([^\\n]+\\n?){0,2}To:[^\\n]+\\n?([^\\n]+\\n?){0,2}Subject:[^\\n]+");
-		quoteHeadersRegex.add("Fra:[^\\n]+\\n?([^\\n]+\\n?){0,2}Til:[^\\n]+\\n?([^\\n]+\\n?){0,2}Emne:[^\\n]+");
-		quoteHeadersRegex.add("To:[^\\n]+\\n?([^\\n]+\\n?){0,2}From:[^\\n]+\\n?([^\\n]+\\n?){0,2}Subject:[^\\n]+");
-		quoteHeadersRegex.add("Til:[^\\n]+\\n?([^\\n]+\\n?){0,2}Fra:[^\\n]+\\n?([^\\n]+\\n?){0,2}Emne:[^\\n]+");
-		quoteHeadersRegex.add("^-----Opprinnelig melding-----");
-
-		maxParagraphLines = 6;
-		maxNumCharsEachLine = 200;
+		this(new Builder());
+	}
+	
+	/**
+	 * Initialize EmailParser from a frozen copy of the builder's configuration.
+	 * The quote headers regular expressions, with the quote headers and separators of the
+	 * locale packs, are compiled once, here, into one {@link QuoteHeaderMatcher}, and the
+	 * signature rules of the packs into another, so a single instance can be shared by any
+	 * number of threads.
+	 * 
+	 * @param builder
+	 */
+	private EmailParser(Builder builder) {
+		quoteHeadersRegex = Collections.unmodifiableList(new ArrayList<String>(builder.quoteHeadersRegex));
+		locales = Collections.unmodifiableList(new ArrayList<String>(builder.locales));
+		List<String> headerRules = new ArrayList<String>(quoteHeadersRegex);
+		List<String> signatureRules = new ArrayList<String>();
+		for (String language : locales) {
+			LocalePack pack = LocalePack.forLanguage(language);
+			addMissing(headerRules, pack.getQuoteHeaders());
+			addMissing(headerRules, pack.getSeparators());
+			addMissing(signatureRules, pack.getSignatures());
+		}
+		quoteHeaderMatcher = new QuoteHeaderMatcher(headerRules);
+		localeSignatureMatcher = signatureRules.isEmpty() ? null : new QuoteHeaderMatcher(signatureRules);
+		maxParagraphLines = builder.maxParagraphLines;
+		maxNumCharsEachLine = builder.maxNumCharsEachLine;
+		regexEngine = builder.regexEngine;
+		timeoutNanos = builder.timeoutNanos;
+		executor = builder.executor;
+		signatureMatcher = regexEngine == RegexEngine.LINEAR_TIME 
+				? new LinearMatcher(Arrays.asList(RegexParser.parse(SENT_FROM_PATTERN.pattern(), SENT_FROM_PATTERN.flags())), new int[] {0}) 
+				: null;
+		cache = builder.cache;
+		fingerprint = fingerprint(headerRules, signatureRules, maxParagraphLines, maxNumCharsEachLine, regexEngine);
+	}
+	
+	/**
+	 * Adds the rules that are not in the list yet, so that packs sharing a rule, or repeating
+	 * a default one, do not make it run twice.
+	 * 
+	 * @param rules
+	 * @param added
+	 */
+	private static void addMissing(List<String> rules, List<String> added) {
+		for (String rule : added) {
+			if (!rules.contains(rule))
+				rules.add(rule);
+		}
+	}
+	
+	/**
+	 * Hashes the settings that change the result of a parse. The timeout only does when it runs out,
+	 * and truncated results are not cached.
+	 * 
+	 * @param headerRules
+	 * @param signatureRules
+	 * @param maxParagraphLines
+	 * @param maxNumCharsEachLine
+	 * @param regexEngine
+	 * @return
+	 */
+	private static long fingerprint(List<String> headerRules, List<String> signatureRules, int maxParagraphLines, int maxNumCharsEachLine, RegexEngine regexEngine) {
+		long hash = 0xCBF29CE484222325L;
+		for (String regex : headerRules) {
+			for (int i = 0; i < regex.length(); i++)
+				hash = (hash ^ regex.charAt(i)) * 0x100000001B3L;
+			hash = (hash ^ 0xFFFF) * 0x100000001B3L;
+		}
+		hash = (hash ^ 0xFFFE) * 0x100000001B3L;
+		for (String regex : signatureRules) {
+			for (int i = 0; i < regex.length(); i++)
+				hash = (hash ^ regex.charAt(i)) * 0x100000001B3L;
+			hash = (hash ^ 0xFFFF) * 0x100000001B3L;
+		}
+		hash = (hash ^ maxParagraphLines) * 0x100000001B3L;
+		hash = (hash ^ maxNumCharsEachLine) * 0x100000001B3L;
+		return (hash ^ regexEngine.ordinal()) * 0x100000001B3L;
+	}
+	
+	/**
+	 * Returns a {@link Builder} preloaded with the default configuration.
+	 * 
+	 * @return
+	 */
+	public static Builder builder() {
+		return new Builder();
+	}
+	
+	/**
+	 * Returns a {@link Builder} preloaded with this parser's configuration.
+	 * 
+	 * @return
+	 */
+	public Builder toBuilder() {
+		return new Builder()
+				.quoteHeadersRegex(quoteHeadersRegex)
+				.locales(locales.toArray(new String[locales.size()]))
+				.maxParagraphLines(maxParagraphLines)
+				.maxNumCharsEachLine(maxNumCharsEachLine)
+				.regexEngine(regexEngine)
+				.timeout(timeoutNanos, TimeUnit.NANOSECONDS)
+				.executor(executor)
+				.cache(cache);
 	}
 
 	/**
 	 * Splits the given email text into a list of {@link Fragment} and returns the {@link Email} object. 
 	 * 
+	 * If the parser has a timeout and it runs out, the lines that were not classified yet 
+	 * are returned as a single visible fragment at the top, and {@link Email#isTruncated()} is true.
+	 * 
 	 * @param emailText
 	 * @return
 	 */
-	public Email parse(String emailText) {
-		compileQuoteHeaderRegexes();
+	public Email parse(CharSequence emailText) {
+		return parse(emailText, new ParseContext(), false);
+	}
+	
+	/**
+	 * Splits the given email text into a list of {@link Fragment}, like {@link #parse(CharSequence)}, 
+	 * reusing the scratch space of the context instead of allocating it.
+	 * 
+	 * @param emailText
+	 * @param context
+	 * @return
+	 */
+	public Email parse(CharSequence emailText, ParseContext context) {
+		return parse(emailText, context, false);
+	}
+	
+	/**
+	 * Parses the email in the context, yielding the thread now and then if yielding is true.
+	 * 
+	 * @param emailText
+	 * @param context
+	 * @param yielding
+	 * @return
+	 */
+	private Email parse(CharSequence emailText, ParseContext context, boolean yielding) {
+		// The fragments point into the text, so it must not change after parse returns.
+		// UTF-8 text, from bytes or a MailFile, is left in its bytes, which must not change either.
+		CharSequence text = emailText instanceof String || emailText instanceof Utf8Text ? emailText : emailText.toString();
 		
-		// Normalize line endings
-		emailText = emailText.replace("\r\n", "\n");
-
-		FragmentDTO fragment = null;
+		ParseCache.Key key = null;
+		if (cache != null && text instanceof String) {
+			key = ParseCache.key((String) text, fingerprint, ParseCache.EMAIL);
+			Email email = (Email) cache.get(key, (String) text);
+			if (email != null)
+				return email;
+		}
 		
-		// Split body to multiple lines.
-		String[] lines = new StringBuilder(emailText).toString().split("\n");
-		/* Reverse the array.
-		 * 
-		 * Reversing the array makes us to parse from the bottom to the top.  
-		 * This way we can check for quote headers lines above quoted blocks
-		 */
-		ArrayUtils.reverse(lines);
+		context.start(Deadline.after(timeoutNanos, yielding));
+		try {
+			// Find the line boundaries in a single pass, handling \r\n, \n and \r line endings.
+			context.lines = Lines.scan(text, context.lines);
+			
+			Email email = parse(context, null, context.lines.count());
+			if (key != null && !email.isTruncated())
+				cache.put(key, (String) text, email);
+			return email;
+		} finally {
+			context.finish();
+		}
+	}
+	
+	/**
+	 * Splits the given email text into a list of {@link Fragment}, like {@link #parse(CharSequence)}, 
+	 * taking the classification of the lines it ends with from the history when an earlier email
+	 * of the thread ended with the same lines. Only the lines above them are classified, 
+	 * and what is found is added to the history.
+	 * 
+	 * @param emailText
+	 * @param history
+	 * @return
+	 */
+	public Email parse(CharSequence emailText, ThreadHistory history) {
+		ParseContext context = new ParseContext();
+		context.start(Deadline.after(timeoutNanos));
+		CharSequence text = emailText instanceof String || emailText instanceof Utf8Text ? emailText : emailText.toString();
 		
-		/* Paragraph for multi-line quote headers.
-		 * Some clients break up the quote headers into multiple lines.
-	         */
-		List<String> paragraph = new ArrayList<String>();
+		try {
+			Lines lines = Lines.scan(text, context.lines);
+			context.lines = lines;
+			context.history = history;
+			
+			FragmentDTO fragment = null;
+			int paragraphEnd = lines.count();
+			ThreadHistory.Place known = history.start(this, lines);
+			if (known != null) {
+				fragment = known.restore(context);
+				paragraphEnd = known.paragraphEnd(lines);
+			}
+			
+			Email email = parse(context, fragment, paragraphEnd);
+			if (email.isTruncated())
+				history.discard();
+			else
+				history.keep(lines, context.fragments);
+			return email;
+		} finally {
+			context.finish();
+		}
+	}
+	
+	/**
+	 * Returns the visible text of the email, the same as <code>parse(emailText).getVisibleText()</code>.
+	 * 
+	 * Only the top of the email is classified: the parse starts above the quoted block 
+	 * that ends the email or, without one, above the first signature or quote header below
+	 * which every fragment is known to be hidden. The quoted history of a long thread is 
+	 * never matched against the regular expressions. 
+	 * If there is no such place, the whole email is parsed.
+	 * 
+	 * @param emailText
+	 * @return
+	 */
+	public String parseReply(CharSequence emailText) {
+		return parseReply(emailText, new ParseContext(), false);
+	}
+	
+	/**
+	 * Returns the visible text of the email, like {@link #parseReply(CharSequence)}, 
+	 * reusing the scratch space of the context instead of allocating it.
+	 * 
+	 * @param emailText
+	 * @param context
+	 * @return
+	 */
+	public String parseReply(CharSequence emailText, ParseContext context) {
+		return parseReply(emailText, context, false);
+	}
+	
+	/**
+	 * Returns the visible text of the email, parsed in the context,
+	 * yielding the thread now and then if yielding is true.
+	 * 
+	 * @param emailText
+	 * @param context
+	 * @param yielding
+	 * @return
+	 */
+	private String parseReply(CharSequence emailText, ParseContext context, boolean yielding) {
+		ParseCache.Key key = null;
+		if (cache != null && emailText instanceof String) {
+			key = ParseCache.key((String) emailText, fingerprint, ParseCache.REPLY);
+			String reply = (String) cache.get(key, (String) emailText);
+			if (reply != null)
+				return reply;
+		}
 		
-		// Scans the given email line by line and figures out which fragment it belong to.
-		for (String line : lines) {
-			// Strip new line at the end of the string 
-			line = StringUtils.stripEnd(line, "\n");
-			// Strip empty spaces at the end of the string
-			line = StringUtils.stripEnd(line, null);
+		context.start(Deadline.after(timeoutNanos, yielding));
+		try {
+			Lines lines = Lines.scan(emailText, context.lines);
+			context.lines = lines;
 			
-			/* If the fragment is not null and we hit the empty line,
-			 * we get the last line from the fragment and check if the last line is either
-			 * signature and quote headers.
-			 * If it is, add fragment to the list of fragments and delete the current fragment.
-			 * Also, delete the paragraph.
-			 */
-			if (fragment != null && line.isEmpty()) {
-				String last = fragment.lines.get(fragment.lines.size()-1);
+			FragmentDTO fragment = null;
+			int paragraphEnd = lines.count();
+			try {
+				int quoted = findQuotedTail(lines);
+				if (quoted != -1) {
+					// After a quoted line, the fragment being built is quoted, so hidden wherever it ends.
+					fragment = context.newFragment();
+					fragment.isQuoted = true;
+					fragment.firstLine = quoted;
+					fragment.lastLine = lines.count() - 1;
+					paragraphEnd = paragraphEnd(lines, quoted + 1);
+				} else {
+					int cut = findCut(context);
+					if (cut != -1) {
+						// The fragment below the cut was closed, and the blank line starts a new one.
+						fragment = context.newFragment();
+						fragment.firstLine = cut;
+						fragment.lastLine = cut;
+						paragraphEnd = cut;
+					}
+				}
+			} catch (Deadline.ExceededException e) {
+				// Parse it all: parse returns right away, with everything visible.
+				fragment = null;
+				paragraphEnd = lines.count();
+			}
+			Email email = parse(context, fragment, paragraphEnd);
+			if (key != null && !email.isTruncated())
+				cache.put(key, (String) emailText, email.getVisibleText());
+			return email.getVisibleText();
+		} finally {
+			context.finish();
+		}
+	}
+	
+	/**
+	 * Parses every email of the list on the common {@link ForkJoinPool}, see {@link #parseAll(List, ForkJoinPool)}.
+	 * 
+	 * @param emailTexts
+	 * @return
+	 */
+	public List<Email> parseAll(List<? extends CharSequence> emailTexts) {
+		return parseAll(emailTexts, ForkJoinPool.commonPool());
+	}
+	
+	/**
+	 * Parses every email of the list, spread across the workers of the pool, and returns 
+	 * the emails in the order of the list. Each worker parses a run of the list at a time, 
+	 * with one {@link ParseContext}.
+	 * 
+	 * @param emailTexts
+	 * @param pool
+	 * @return an unmodifiable list
+	 */
+	public List<Email> parseAll(List<? extends CharSequence> emailTexts, ForkJoinPool pool) {
+		return BatchTask.run(this, emailTexts, false, pool);
+	}
+	
+	/**
+	 * Returns the visible text of every email of the list, computed on the common {@link ForkJoinPool}, 
+	 * see {@link #parseRepliesAll(List, ForkJoinPool)}.
+	 * 
+	 * @param emailTexts
+	 * @return
+	 */
+	public List<String> parseRepliesAll(List<? extends CharSequence> emailTexts) {
+		return parseRepliesAll(emailTexts, ForkJoinPool.commonPool());
+	}
+	
+	/**
+	 * Returns {@link #parseReply(CharSequence)} of every email of the list, in the order of the list, 
+	 * spread across the workers of the pool like {@link #parseAll(List, ForkJoinPool)}.
+	 * 
+	 * @param emailTexts
+	 * @param pool
+	 * @return an unmodifiable list
+	 */
+	public List<String> parseRepliesAll(List<? extends CharSequence> emailTexts, ForkJoinPool pool) {
+		return BatchTask.run(this, emailTexts, true, pool);
+	}
+	
+	/**
+	 * Parses the email on the parser's executor, see {@link Builder#executor(Executor)}.
+	 * 
+	 * The parse holds no monitor, so it never pins the carrier of a virtual thread. The only locks 
+	 * it takes are java.util.concurrent locks, held for a lookup or an insert: those of the 
+	 * {@link ParseCache}, if any, and the one that adds states to the quote header automaton. 
+	 * It yields the thread now and then, so a huge email does not hold a carrier for long. The timeout, 
+	 * if any, starts when the parse does. A text that is not a String is copied before this returns.
+	 * 
+	 * @param emailText
+	 * @return
+	 */
+	public CompletableFuture<Email> parseAsync(CharSequence emailText) {
+		final CharSequence text = emailText instanceof String || emailText instanceof Utf8Text ? emailText : emailText.toString();
+		return CompletableFuture.supplyAsync(new Supplier<Email>() {
+			public Email get() {
+				return parse(text, new ParseContext(), true);
+			}
+		}, getExecutor());
+	}
+	
+	/**
+	 * Returns the visible text of the email, computed on the parser's executor like {@link #parseAsync(CharSequence)}.
+	 * 
+	 * @param emailText
+	 * @return
+	 */
+	public CompletableFuture<String> parseReplyAsync(CharSequence emailText) {
+		final CharSequence text = emailText instanceof String || emailText instanceof Utf8Text ? emailText : emailText.toString();
+		return CompletableFuture.supplyAsync(new Supplier<String>() {
+			public String get() {
+				return parseReply(text, new ParseContext(), true);
+			}
+		}, getExecutor());
+	}
+	
+	/**
+	 * Splits an HTML email into a list of {@link Fragment}, parsing the text of the markup, 
+	 * see {@link HtmlToText}: a br ends a line, and a p or a heading a paragraph. 
+	 * 
+	 * The markup is read in one pass, without building a document, and only up to the first 
+	 * container an email client puts quoted history in (Gmail, Apple Mail, Thunderbird, Outlook). 
+	 * That history is never read, so it is not in the email, not even as a hidden fragment.
+	 * 
+	 * @param html
+	 * @return
+	 */
+	public Email parseHtml(CharSequence html) {
+		return parse(HtmlToText.beforeQuote(html));
+	}
+	
+	/**
+	 * Returns the visible text of an HTML email, see {@link #parseHtml(CharSequence)}.
+	 * 
+	 * @param html
+	 * @return
+	 */
+	public String parseReplyHtml(CharSequence html) {
+		return parseReply(HtmlToText.beforeQuote(html));
+	}
+	
+	/**
+	 * Reads an HTML email from the reader and splits it into a list of {@link Fragment}, 
+	 * the same as {@link #parseHtml(CharSequence)} for the whole markup. The text is parsed 
+	 * as it is read, like with {@link #parse(Reader, boolean)}, so neither the markup nor 
+	 * its text is held as a whole.
+	 * 
+	 * @param html
+	 * @param discardHidden
+	 * @return
+	 * @throws IOException
+	 */
+	public Email parseHtml(Reader html, boolean discardHidden) throws IOException {
+		return parse(HtmlToText.beforeQuote(html), discardHidden);
+	}
+	
+	/**
+	 * Reads an HTML email from the reader and returns its visible text, 
+	 * the same as <code>parseHtml(html, true).getVisibleText()</code>.
+	 * 
+	 * @param html
+	 * @return
+	 * @throws IOException
+	 */
+	public String parseReplyHtml(Reader html) throws IOException {
+		return parseHtml(html, true).getVisibleText();
+	}
+	
+	/**
+	 * Splits the reply of a MIME message into a list of {@link Fragment}. The reply is the
+	 * first text/plain or text/html part that is not an attachment, the plain text of a
+	 * multipart/alternative; HTML is parsed like with {@link #parseHtml(Reader, boolean)}.
+	 * A message without such a part is an empty email.
+	 * 
+	 * The part is read from {@link Part#getInputStream()} and parsed as it is decoded.
+	 * The other parts are never read, though a message may hold them already.
+	 * 
+	 * @param message
+	 * @return
+	 * @throws MessagingException
+	 * @throws IOException
+	 */
+	public Email parse(Part message) throws MessagingException, IOException {
+		return parse(MimeText.of(message), false);
+	}
+	
+	/**
+	 * Returns the visible text of the reply of a MIME message, see {@link #parse(Part)}.
+	 * 
+	 * @param message
+	 * @return
+	 * @throws MessagingException
+	 * @throws IOException
+	 */
+	public String parseReply(Part message) throws MessagingException, IOException {
+		return parse(MimeText.of(message), true).getVisibleText();
+	}
+	
+	/**
+	 * Reads a raw RFC 822 message from the stream and splits its reply into a list of
+	 * {@link Fragment}, the same as {@link #parse(Part)} for the message. The stream is not closed.
+	 * 
+	 * The message is read once and not held: the parts before the reply are skipped a line
+	 * at a time, the reply is decoded and parsed as it is read, and the stream is not read
+	 * past it. An attachment after the reply is not read at all, and one before it is only
+	 * scanned for the boundary that ends it.
+	 * 
+	 * @param rfc822
+	 * @return
+	 * @throws IOException
+	 */
+	public Email parseMessage(InputStream rfc822) throws IOException {
+		return parse(MimeText.of(rfc822), false);
+	}
+	
+	/**
+	 * Reads a raw RFC 822 message from the stream and returns the visible text of its reply,
+	 * the same as <code>parseMessage(rfc822).getVisibleText()</code>, with hidden fragments
+	 * dropped as they are read.
+	 * 
+	 * @param rfc822
+	 * @return
+	 * @throws IOException
+	 */
+	public String parseReplyMessage(InputStream rfc822) throws IOException {
+		return parse(MimeText.of(rfc822), true).getVisibleText();
+	}
+	
+	private Email parse(MimeText text, boolean discardHidden) throws IOException {
+		if (text == null)
+			return parse("");
+		if (text.isHtml())
+			return parseHtml(text.getText(), discardHidden);
+		return parse(text.getText(), discardHidden);
+	}
+	
+	/**
+	 * Splits an email given as UTF-8 bytes into a list of {@link Fragment}, 
+	 * the same as {@link #parse(CharSequence)} for <code>new String(utf8, "UTF-8")</code>.
+	 * 
+	 * The bytes are not decoded into a string: lines are found and matched in the bytes, 
+	 * which are read as chars directly while they are ASCII. Only the content of the fragments 
+	 * that are asked for is decoded. The fragments read it from the array, 
+	 * so it must not change while the email is in use.
+	 * 
+	 * @param utf8
+	 * @return
+	 */
+	public Email parse(byte[] utf8) {
+		return parse(new Utf8Text(ByteBuffer.wrap(utf8), 0, utf8.length));
+	}
+	
+	/**
+	 * Returns the visible text of an email given as UTF-8 bytes, 
+	 * the same as {@link #parseReply(CharSequence)} for <code>new String(utf8, "UTF-8")</code>.
+	 * 
+	 * @param utf8
+	 * @return
+	 */
+	public String parseReply(byte[] utf8) {
+		return parseReply(new Utf8Text(ByteBuffer.wrap(utf8), 0, utf8.length));
+	}
+	
+	/**
+	 * Reads the email from the reader and splits it into a list of {@link Fragment}, 
+	 * the same as {@link #parse(CharSequence)} for the whole text.
+	 * 
+	 * @param reader
+	 * @return
+	 * @throws IOException
+	 */
+	public Email parse(Reader reader) throws IOException {
+		return parse(reader, false);
+	}
+	
+	/**
+	 * Reads the email from the reader and splits it into a list of {@link Fragment},
+	 * the same as {@link #parse(CharSequence)} for the whole text. The reader is not closed.
+	 * 
+	 * The email is read one line at a time. Every blank line where the parse would close 
+	 * the fragment below as a signature or quote header makes the lines above independent 
+	 * of the rest of the email: they are classified right away and only their fragments are kept.
+	 * Deciding this needs the next paragraph, so little more than the lines since the last 
+	 * such blank line is held in memory. 
+	 * 
+	 * With discardHidden, hidden fragments are dropped as soon as they are classified, and 
+	 * the email only has the visible fragments. Quoted lines are then cut at as well, since the 
+	 * fragment they are in is hidden wherever it ends, so a long quoted history is never held 
+	 * in memory, and the text of quoted lines is not kept beyond the paragraphs that could be 
+	 * quote headers. 
+	 * 
+	 * If the parser has a timeout and it runs out, the lines not classified yet, 
+	 * up to the end of the email, are returned as one visible fragment.
+	 * 
+	 * @param reader
+	 * @param discardHidden
+	 * @return
+	 * @throws IOException
+	 */
+	public Email parse(Reader reader, boolean discardHidden) throws IOException {
+		ParseContext context = new ParseContext();
+		context.start(Deadline.after(timeoutNanos));
+		LineReader in = new LineReader(reader);
+		LineBuffer buffer = new LineBuffer();
+		List<Fragment> fragments = new ArrayList<Fragment>();
+		
+		// Quoted lines are always hidden, but unclassified lines are shown when time runs out.
+		boolean shortenQuotes = discardHidden && timeoutNanos <= 0;
+		// How the blank line above the buffer closed the fragment below it.
+		int close = NO_CUT;
+		// The next line to check for a cut, and the number of lines since the last blank line.
+		int next = 0;
+		int paragraphLines = 0;
+		boolean eof = false;
+		try {
+			while (!eof) {
+				eof = !in.next();
+				if (!eof) {
+					CharSequence line = in.line();
+					// A quoted line is only read by quote headers checks, which a paragraph this long fails.
+					if (shortenQuotes && paragraphLines >= maxParagraphLines && line.length() > 0 && line.charAt(0) == '>')
+						line = ">";
+					buffer.add(line, in.start(), in.end());
+					paragraphLines = line.length() == 0 ? 0 : paragraphLines + 1;
+				}
 				
-				if (isSignature(last)) {
-					fragment.isSignature = true;
-					addFragment(fragment);
+				for (; next < buffer.count(); next++) {
+					Lines lines = buffer.lines();
+					context.lines = lines;
+					if (lines.isEmpty(next)) {
+						int cut = cutAt(context, next, eof);
+						if (cut == UNDECIDED)
+							break;
+						if (cut != NO_CUT) {
+							// The blank line starts a new fragment, as in parseReply(CharSequence).
+							FragmentDTO fragment = context.newFragment();
+							fragment.firstLine = next;
+							fragment.lastLine = next;
+							emit(context, buffer, fragment, next, close, discardHidden, fragments);
+							buffer.removeFirst(next + 1);
+							close = cut;
+							next = -1;
+						}
+					} else if (discardHidden && next >= STREAM_SEGMENT_LINES && isQuoteStart(lines, next)) {
+						int paragraphEnd = quotedCutParagraphEnd(lines, next, eof);
+						if (paragraphEnd == -1)
+							break;
+						// After a quoted line, the fragment being built is quoted. It is hidden wherever 
+						// it ends, so it is dropped in both halves. The line stays for the lines below it.
+						FragmentDTO fragment = context.newFragment();
+						fragment.isQuoted = true;
+						fragment.firstLine = next;
+						fragment.lastLine = next;
+						emit(context, buffer, fragment, paragraphEnd, close, discardHidden, fragments);
+						buffer.removeFirst(next);
+						close = NO_CUT;
+						next = 0;
+					}
+				}
+			}
+			context.lines = buffer.lines();
+			emit(context, buffer, null, buffer.count(), close, discardHidden, fragments);
+		} catch (Deadline.ExceededException e) {
+			StringBuilder content = new StringBuilder();
+			int start = buffer.count() > 0 ? buffer.start(0) : -1;
+			int end = buffer.count() > 0 ? buffer.end(buffer.count() - 1) : -1;
+			buffer.lines().append(content, 0, buffer.count() - 1);
+			while (in.next()) {
+				if (start == -1)
+					start = in.start();
+				else
+					content.append('\n');
+				content.append(in.line());
+				end = in.end();
+			}
+			if (start != -1)
+				fragments.add(new Fragment(content.toString(), null, start, end, false, false, false));
+			return new Email(fragments, true);
+		}
+		return new Email(fragments);
+	}
+	
+	/**
+	 * Reads the email from the reader and returns its visible text, 
+	 * the same as <code>parse(reader, true).getVisibleText()</code>.
+	 * 
+	 * @param reader
+	 * @return
+	 * @throws IOException
+	 */
+	public String parseReply(Reader reader) throws IOException {
+		return parse(reader, true).getVisibleText();
+	}
+	
+	/**
+	 * Tells if the parse closes the fragment below the given blank line, like 
+	 * {@link #isCut(ParseContext, int)}, when the lines after the last one may not be read yet.
+	 * 
+	 * @param context
+	 * @param line
+	 * @param eof true if the lines of the context go up to the end of the email
+	 * @return UNDECIDED if more lines are needed, NO_CUT, SIGNATURE_CUT or QUOTE_HEADER_CUT
+	 */
+	private int cutAt(ParseContext context, int line, boolean eof) {
+		Lines lines = context.lines;
+		int count = lines.count();
+		if (line + 1 >= count)
+			return eof ? NO_CUT : UNDECIDED;
+		
+		int end = line + 1;
+		while (end < count && !lines.isEmpty(end))
+			end++;
+		// Like paragraphEnd(Lines, int), which needs to know where the last line is.
+		int paragraphEnd;
+		if (end < count - 1)
+			paragraphEnd = end;
+		else if (eof)
+			paragraphEnd = count;
+		else if (end - line - 1 > maxParagraphLines)
+			paragraphEnd = -1;
+		else
+			return UNDECIDED;
+		
+		if (isSignature(context, line + 1))
+			return SIGNATURE_CUT;
+		if (paragraphEnd != -1 && isQuoteHeader(context, line + 1, paragraphEnd))
+			return QUOTE_HEADER_CUT;
+		return NO_CUT;
+	}
+	
+	/**
+	 * Returns the paragraphEnd the parse has above the given quoted line, or -1 if more lines are needed.
+	 * The exact value is only needed if the paragraph could be a quote header, 
+	 * so a paragraph already known to be too long is ended at the lines read so far.
+	 * 
+	 * @param lines
+	 * @param line
+	 * @param eof true if lines has all the lines up to the end of the email
+	 * @return
+	 */
+	private int quotedCutParagraphEnd(Lines lines, int line, boolean eof) {
+		int count = lines.count();
+		int end = line + 1;
+		while (end < count && !lines.isEmpty(end))
+			end++;
+		if (end < count - 1)
+			return end;
+		if (eof)
+			return count;
+		
+		// Only the blank line above reads a paragraph that reaches below the line.
+		int blank = line - 1;
+		while (blank >= 0 && !lines.isEmpty(blank))
+			blank--;
+		if (blank == -1 || end - blank - 1 > maxParagraphLines)
+			return end;
+		return -1;
+	}
+	
+	/**
+	 * Classifies the lines of the buffer above the given fragment, see 
+	 * {@link #classify(ParseContext, FragmentDTO, int)}, and adds their fragments to the list,
+	 * from the top to the bottom. The lines are not removed from the buffer, 
+	 * and the fragment records of the context are reused afterwards.
+	 * 
+	 * @param context
+	 * @param buffer
+	 * @param fragment the fragment being built at the bottom, or null for the end of the email
+	 * @param paragraphEnd
+	 * @param close how the blank line above the buffer closed the fragment below it, NO_CUT if none did
+	 * @param discardHidden
+	 * @param fragments
+	 */
+	private void emit(ParseContext context, LineBuffer buffer, FragmentDTO fragment, int paragraphEnd, int close, boolean discardHidden, List<Fragment> fragments) {
+		Lines lines = context.lines;
+		List<FragmentDTO> dtos = context.fragments;
+		if (classify(context, fragment, paragraphEnd) != -1)
+			throw new Deadline.ExceededException();
+		
+		if (close != NO_CUT && !dtos.isEmpty()) {
+			FragmentDTO top = dtos.get(dtos.size() - 1);
+			if (close == SIGNATURE_CUT)
+				top.isSignature = true;
+			else
+				top.isQuoted = true;
+			top.isHidden = true;
+		}
+		
+		for (int i = dtos.size() - 1; i >= 0; i--) {
+			FragmentDTO f = dtos.get(i);
+			if (discardHidden && f.isHidden)
+				continue;
+			String content = lines.append(new StringBuilder(), f.firstLine, f.lastLine).toString();
+			fragments.add(new Fragment(content, null, buffer.start(f.firstLine), buffer.end(f.lastLine), f.isHidden, f.isSignature, f.isQuoted));
+		}
+		context.reuseFragments();
+	}
+	
+	/**
+	 * Classifies the lines from the bottom up to the first one, see
+	 * {@link #classify(ParseContext, FragmentDTO, int)}, and returns them as an {@link Email}.
+	 * 
+	 * @param context
+	 * @param fragment
+	 * @param paragraphEnd
+	 * @return
+	 */
+	private Email parse(ParseContext context, FragmentDTO fragment, int paragraphEnd) {
+		int unclassified = classify(context, fragment, paragraphEnd);
+		
+		if (unclassified != -1) {
+			FragmentDTO rest = context.newFragment();
+			rest.firstLine = 0;
+			rest.lastLine = unclassified;
+			context.fragments.add(rest);
+		}
+		
+		return createEmail(context, unclassified != -1);
+	}
+	
+	/**
+	 * Classifies the lines from the bottom up to the first one, adding the fragments to the list
+	 * of the context from the bottom of the email to the top.
+	 * 
+	 * To classify all the lines, fragment is null and paragraphEnd is the number of lines.
+	 * Otherwise, the parse continues above fragment.firstLine, as if it had just reached 
+	 * that line with the given fragment being built and paragraph end. Only the fragments
+	 * above it are added, with the given fragment.
+	 * 
+	 * If the deadline passes, returns the last line that was not classified. The lines above it
+	 * are not added, but the fragment being built is, with what is known about it.
+	 * 
+	 * @param context
+	 * @param fragment
+	 * @param paragraphEnd
+	 * @return -1 if all lines were classified
+	 */
+	private int classify(ParseContext context, FragmentDTO fragment, int paragraphEnd) {
+		Lines lines = context.lines;
+		Deadline deadline = context.deadline;
+		List<FragmentDTO> fragments = context.fragments;
+		ThreadHistory history = context.history;
+		/* paragraphEnd delimits the paragraph for multi-line quote headers.
+		 * Some clients break up the quote headers into multiple lines.
+		 * The paragraph holds the non-empty lines between the current line and paragraphEnd (exclusive).
+		 */
+		
+		/* Scans the given email line by line, from the bottom to the top, 
+		 * and figures out which fragment it belong to.
+		 * 
+		 * Parsing from the bottom to the top lets us check for quote headers lines above quoted blocks.
+		 */
+		int i = fragment == null ? lines.count() - 1 : fragment.firstLine - 1;
+		boolean truncated = false;
+		try {
+			for (; i >= 0; i--) {
+				deadline.check();
+				int lineClass = lines.lineClass(i);
+				boolean isEmpty = lineClass == Lines.BLANK;
+			
+				/* If the fragment is not null and we hit the empty line,
+				 * we get the last line from the fragment and check if the last line is either
+				 * signature and quote headers.
+				 * If it is, add fragment to the list of fragments and delete the current fragment.
+				 * Also, delete the paragraph.
+				 */
+				if (fragment != null && isEmpty) {
+					if (isSignature(context, fragment.firstLine)) {
+						fragment.isSignature = true;
+						addFragment(lines, fragments, fragment);
 					
-					fragment = null;
-				} 
-				else if (isQuoteHeader(paragraph)) {
-					fragment.isQuoted = true;
-					addFragment(fragment);
+						fragment = null;
+					} 
+					else if (isQuoteHeader(context, i + 1, paragraphEnd)) {
+						fragment.isQuoted = true;
+						addFragment(lines, fragments, fragment);
 					
-					fragment = null;
+						fragment = null;
+					}
+					paragraphEnd = i;
 				}
-				paragraph.clear();
-			}
 			
-			// Check if the line is a quoted line.
-			boolean isQuoted = isQuote(line);
+				// Check if the line is a quoted line.
+				boolean isQuoted = (lineClass & Lines.QUOTE_DEPTH) != 0;
 			
-			/*
-			 * If fragment is empty or if the line does not matches the current fragment,
-			 * create new fragment.
-			 */
-			if (fragment == null || !isFragmentLine(fragment, line, isQuoted)) {
-				if (fragment != null)
-					addFragment(fragment);
+				/*
+				 * If fragment is empty or if the line does not matches the current fragment,
+				 * create new fragment.
+				 */
+				if (fragment == null || !isFragmentLine(context, fragment, i, isQuoted)) {
+					if (fragment != null)
+						addFragment(lines, fragments, fragment);
 				
-				fragment = new FragmentDTO();
-				fragment.isQuoted = isQuoted;
-				fragment.lines = new ArrayList<String>();
-			}
+					fragment = context.newFragment();
+					fragment.isQuoted = isQuoted;
+					fragment.lastLine = i;
+				}
 			
-			// Add line to fragment and paragraph
-			fragment.lines.add(line);	
-			if (!line.isEmpty()) {
-				paragraph.add(line);
+				// Add line to fragment. The paragraph grows implicitly.
+				fragment.firstLine = i;
+				
+				if (history != null)
+					history.reached(lines, i, fragment, paragraphEnd, fragments.size());
 			}
+		} catch (Deadline.ExceededException e) {
+			// Lines 0..i are left unclassified; the fragment being built keeps what is known about it.
+			truncated = true;
 		}
 		
 		if (fragment != null)
-			addFragment(fragment);
+			addFragment(lines, fragments, fragment);
 		
-		return createEmail(fragments);
+		return truncated ? i : -1;
 	}
 	
 	/**
-	 * Returns existing quote headers regular expressions.
+	 * Returns the first line of the quoted block at the end of the email, 
+	 * or -1 if the email does not end with quoted and blank lines only.
+	 * 
+	 * @param lines
+	 * @return
+	 */
+	private int findQuotedTail(Lines lines) {
+		int first = -1;
+		for (int i = lines.count() - 1; i >= 0; i--) {
+			if (lines.isEmpty(i))
+				continue;
+			if (!isQuoteStart(lines, i))
+				break;
+			first = i;
+		}
+		return first;
+	}
+	
+	/**
+	 * Finds the first blank line such that the full parse closes a fragment there
+	 * and every fragment below it is hidden, or returns -1.
+	 * 
+	 * Below such a line, the full parse only makes hidden fragments if the lines are
+	 * lines that are not quoted, then quoted lines, with blank lines anywhere.
+	 * The lines that are not quoted are in fragments closed as signatures or quote headers, 
+	 * the last one at the cut, and the rest is quoted or blank.
+	 * This is checked without any regular expression.
+	 * 
+	 * @param context
+	 * @return
+	 */
+	private int findCut(ParseContext context) {
+		Lines lines = context.lines;
+		int count = lines.count();
+		
+		// The last line that is neither blank nor quoted, and the last quoted line above it.
+		int lastUnquoted = count - 1;
+		while (lastUnquoted >= 0 && (lines.isEmpty(lastUnquoted) || isQuoteStart(lines, lastUnquoted)))
+			lastUnquoted--;
+		int lastQuoted = lastUnquoted - 1;
+		while (lastQuoted >= 0 && (lines.isEmpty(lastQuoted) || !isQuoteStart(lines, lastQuoted)))
+			lastQuoted--;
+		
+		for (int i = Math.max(0, lastQuoted + 1); i < count - 1; i++) {
+			context.deadline.check();
+			if (lines.isEmpty(i) && isCut(context, i))
+				return i;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Checks if the full parse closes the fragment below the given blank line,
+	 * because it starts with a signature or a quote header.
+	 * This only depends on the lines down to the next blank line.
 	 * 
+	 * @param context
+	 * @param line
 	 * @return
 	 */
+	private boolean isCut(ParseContext context, int line) {
+		return isSignature(context, line + 1) || isQuoteHeader(context, line + 1, paragraphEnd(context.lines, line + 1));
+	}
+	
+	/**
+	 * Returns the paragraphEnd the full parse has when it reaches the line above the given one: 
+	 * the next blank line, or the number of lines. 
+	 * A blank last line does not count, since no fragment is open yet when the parse sees it.
+	 * 
+	 * @param lines
+	 * @param line
+	 * @return
+	 */
+	private int paragraphEnd(Lines lines, int line) {
+		int end = line;
+		while (end < lines.count() - 1 && !lines.isEmpty(end))
+			end++;
+		return end < lines.count() - 1 ? end : lines.count();
+	}
+	
+	/**
+	 * Checks if a line is a quoted line, which starts with ">", from its class.
+	 * 
+	 * @param lines
+	 * @param line
+	 * @return
+	 */
+	private boolean isQuoteStart(Lines lines, int line) {
+		return lines.quoteDepth(line) != 0;
+	}
+	
+	/**
+	 * Returns existing quote headers regular expressions.
+	 * 
+	 * @return an unmodifiable list
+	 */
 	public List<String> getQuoteHeadersRegex() {
 		return this.quoteHeadersRegex;
 	}
 	
 	/**
-	 * Sets quote headers regular expressions.
+	 * Returns the languages of the locale packs in use.
 	 * 
-	 * @param newRegex
+	 * @return an unmodifiable list
 	 */
-	public void setQuoteHeadersRegex(List<String> newRegex) {
-		this.quoteHeadersRegex = newRegex;
+	public List<String> getLocales() {
+		return locales;
 	}
 	
 	/**
@@ -157,84 +1061,115 @@ public class EmailParser {
 	}
 	
 	/**
-	 * Sets max number of lines allowed for each paragraph when checking quote headers.
+	 * Gets max number of characters allowed for each line when checking quote headers.
 	 * 
-	 * @param maxParagraphLines
+	 * @return
 	 */
-	public void setMaxParagraphLines(int maxParagraphLines) {
-		this.maxParagraphLines = maxParagraphLines;
+	public int getMaxNumCharsEachLine() {
+		return maxNumCharsEachLine;
 	}
 	
 	/**
-	 * Gets max number of characters allowed for each line when checking quote headers.
+	 * Gets the regular expression engine used for quote headers and signatures.
 	 * 
 	 * @return
 	 */
-	public int getMaxNumCharsEachLine() {
-		return maxNumCharsEachLine;
+	public RegexEngine getRegexEngine() {
+		return regexEngine;
 	}
 	
 	/**
-	 * Sets max number of characters allowed for each line when checking quote headers.
-	 * @param maxNumCharsEachLine
+	 * Gets the time a single parse may take, or zero if there is no limit.
+	 * 
+	 * @param unit
+	 * @return
 	 */
-	public void setMaxNumCharsEachLine(int maxNumCharsEachLine) {
-		this.maxNumCharsEachLine = maxNumCharsEachLine;
+	public long getTimeout(TimeUnit unit) {
+		return unit.convert(timeoutNanos, TimeUnit.NANOSECONDS);
 	}
 	
 	/**
-	 * Creates {@link Email} object from List of fragments.
-	 * @param fragmentDTOs
+	 * Gets the executor of the async parses.
+	 * 
 	 * @return
 	 */
-	protected Email createEmail(List<FragmentDTO> fragmentDTOs) {
-		List <Fragment> fs = new ArrayList<Fragment>();
-		Collections.reverse(fragmentDTOs);
-		for (FragmentDTO f : fragmentDTOs) {
-			Collections.reverse(f.lines);
-			String content = new StringBuilder(StringUtils.join(f.lines,"\n")).toString();
-			Fragment fr = new Fragment(content, f.isHidden, f.isSignature, f.isQuoted);
-			fs.add(fr);
-		}
-		return new Email(fs);
+	public Executor getExecutor() {
+		return executor != null ? executor : VirtualThreads.executor();
+	}
+	
+	/**
+	 * Gets the cache of parse results, or null if there is none.
+	 * 
+	 * @return
+	 */
+	public ParseCache getCache() {
+		return cache;
 	}
 	
 	/**
-	 * Compile all the quote headers regular expressions before the parsing.
+	 * Creates {@link Email} object from the List of fragments of the context.
+	 * The fragments are listed from the bottom of the email to the top.
 	 * 
+	 * @param context
+	 * @param truncated
+	 * @return
 	 */
-	private void compileQuoteHeaderRegexes() {
-		for (String regex : quoteHeadersRegex) {
-			compiledQuoteHeaderPatterns.add(Pattern.compile(regex, Pattern.MULTILINE | Pattern.DOTALL));
+	private Email createEmail(ParseContext context, boolean truncated) {
+		Lines lines = context.lines;
+		List<FragmentDTO> fragmentDTOs = context.fragments;
+		List <Fragment> fs = context.results;
+		for (int i = fragmentDTOs.size() - 1; i >= 0; i--) {
+			FragmentDTO f = fragmentDTOs.get(i);
+			Fragment fr = new Fragment(lines.text(), lines.start(f.firstLine), lines.end(f.lastLine), f.isHidden, f.isSignature, f.isQuoted);
+			fs.add(fr);
 		}
+		return new Email(fs, truncated);
 	}
 	
 	/**
 	 * Check if the line is a signature.
+	 * @param context
 	 * @param line
 	 * @return
 	 */
-	private boolean isSignature(String line) {
-		boolean find = SIG_PATTERN.matcher(line).find();
+	private boolean isSignature(ParseContext context, int line) {
+		int lineClass = context.lines.lineClass(line);
+		if (lineClass == 0 && localeSignatureMatcher != null)
+			return isLocaleSignature(context, line);
+		if ((lineClass & Lines.SENT_FROM) == 0)
+			return (lineClass & Lines.SIGNATURE) != 0;
+		CharSequence text = context.deadline.guard(context.line(line));
+		if (signatureMatcher != null)
+			return signatureMatcher.find(text, context.linearScratch()) != -1;
+		boolean find = context.signatureMatcher(text).find();
 		return find;
 	}
 	
 	/**
-	 * Checks if the line is quoted line.
+	 * Check if a plain line matches a signature rule of the locale packs.
+	 * @param context
 	 * @param line
 	 * @return
 	 */
-	private boolean isQuote(String line) {
-		return QUOTE_PATTERN.matcher(line).find();
+	private boolean isLocaleSignature(ParseContext context, int line) {
+		if (!localeSignatureMatcher.mayMatch(context.lines, line, line + 1))
+			return false;
+		CharSequence text = context.deadline.guard(context.line(line));
+		return localeSignatureMatcher.find(text, context.signatureRuleMatchers(localeSignatureMatcher), context.linearScratch()) != -1;
 	}
 	
 	/**
 	 * Checks if lines in the fragment are empty. 
+	 * @param lines
 	 * @param fragment
 	 * @return
 	 */
-	private boolean isEmpty(FragmentDTO fragment) {
-		return StringUtils.join(fragment.lines,"").isEmpty();
+	private boolean isEmpty(Lines lines, FragmentDTO fragment) {
+		for (int i = fragment.firstLine; i <= fragment.lastLine; i++) {
+			if (!lines.isEmpty(i))
+				return false;
+		}
+		return true;
 	}
 	
 	/**
@@ -242,21 +1177,24 @@ public class EmailParser {
 	 * Note that a common reply header also counts as part of the quoted Fragment, 
 	 * even though it doesn't start with `>`.
 	 * 
+	 * @param context
 	 * @param fragment
 	 * @param line
 	 * @param isQuoted
 	 * @return
 	 */
-	private boolean isFragmentLine(FragmentDTO fragment, String line, boolean isQuoted) {
-		return fragment.isQuoted == isQuoted || (fragment.isQuoted && (isQuoteHeader(Arrays.asList(line)) || line.isEmpty()));
+	private boolean isFragmentLine(ParseContext context, FragmentDTO fragment, int line, boolean isQuoted) {
+		return fragment.isQuoted == isQuoted || (fragment.isQuoted && (context.lines.isEmpty(line) || isQuoteHeader(context, line, line + 1)));
 	}
 	
 	/**
 	 * Add fragment to fragments list.
+	 * @param lines
+	 * @param fragments
 	 * @param fragment
 	 */
-	private void addFragment(FragmentDTO fragment) {
-		if (fragment.isQuoted || fragment.isSignature || isEmpty(fragment)) 
+	private void addFragment(Lines lines, List<FragmentDTO> fragments, FragmentDTO fragment) {
+		if (fragment.isQuoted || fragment.isSignature || isEmpty(lines, fragment)) 
 			fragment.isHidden = true;
 		
 		fragments.add(fragment);
@@ -264,28 +1202,173 @@ public class EmailParser {
 	
 	/**
 	 * Checks if the given multiple-lines paragraph has one of the quote headers.
+	 * The paragraph is made of the lines from first (inclusive) to end (exclusive).
 	 * Returns false if it doesn't contain any of the quote headers, 
 	 * if paragraph lines are greater than maxParagraphLines, or line has more than maxNumberCharsEachLine characters.
 	 *   
-	 * @param paragraph
+	 * @param context
+	 * @param first
+	 * @param end
 	 * @return
 	 */
-	private boolean isQuoteHeader(List<String> paragraph) {
-		if (paragraph.size() > maxParagraphLines)
+	private boolean isQuoteHeader(ParseContext context, int first, int end) {
+		Lines lines = context.lines;
+		// A paragraph that reaches the end of the email holds its last line, which may be blank:
+		// the parse meets it with no fragment open. The paragraph only has the lines that are not.
+		if (end > first && lines.isEmpty(end - 1))
+			end--;
+		if (end - first > maxParagraphLines)
 			return false;
-		for (String line : paragraph) {
-			if (line.length() > maxNumCharsEachLine)
+		for (int i = first; i < end; i++) {
+			if (lines.length(i) > maxNumCharsEachLine)
 				return false;
 		}
-		Collections.reverse(paragraph);
-		String content = new StringBuilder(StringUtils.join(paragraph,"\n")).toString();
-		for(Pattern p : compiledQuoteHeaderPatterns) {
-			if (p.matcher(content).find()) {
-				return true;
-			}
+		if (!quoteHeaderMatcher.mayMatch(lines, first, end))
+			return false;
+		CharSequence paragraph = context.deadline.guard(first == end ? "" : context.paragraph(first, end - 1));
+		return quoteHeaderMatcher.find(paragraph, context.headerMatchers(quoteHeaderMatcher), context.linearScratch()) != -1;
+	}	
+
+	/**
+	 * Collects the configuration of an {@link EmailParser}. 
+	 * The builder starts out with the default quote headers and paragraph limits.
+	 */
+	public static class Builder {
+		private List<String> quoteHeadersRegex = new ArrayList<String>(DEFAULT_QUOTE_HEADERS_REGEX);
+		private List<String> locales = new ArrayList<String>();
+		private int maxParagraphLines = DEFAULT_MAX_PARAGRAPH_LINES;
+		private int maxNumCharsEachLine = DEFAULT_MAX_NUM_CHARS_EACH_LINE;
+		private RegexEngine regexEngine = RegexEngine.JAVA_UTIL_REGEX;
+		private long timeoutNanos;
+		private Executor executor;
+		private ParseCache cache;
+		
+		Builder() {
 		}
 		
-		return false;
-
-	}	
+		/**
+		 * Replaces the quote headers regular expressions.
+		 * 
+		 * @param quoteHeadersRegex
+		 * @return
+		 */
+		public Builder quoteHeadersRegex(List<String> quoteHeadersRegex) {
+			this.quoteHeadersRegex = new ArrayList<String>(quoteHeadersRegex);
+			return this;
+		}
+		
+		/**
+		 * Adds a quote headers regular expression.
+		 * 
+		 * @param regex
+		 * @return
+		 */
+		public Builder addQuoteHeaderRegex(String regex) {
+			this.quoteHeadersRegex.add(regex);
+			return this;
+		}
+		
+		/**
+		 * Sets the languages whose locale packs are used, such as "de" or "sv", replacing the ones set before.
+		 * The quote headers and separators of the packs are matched along with the quote headers regular 
+		 * expressions, and their signature rules along with the built-in ones. Packs are read when a parser 
+		 * first needs them, and there are packs for da, de, en, es, fr, no and sv. The default quote headers 
+		 * are those of the en and no packs, so these two only add the Norwegian signature rule.
+		 * 
+		 * @param languages
+		 * @return
+		 */
+		public Builder locales(String... languages) {
+			this.locales = new ArrayList<String>(Arrays.asList(languages));
+			return this;
+		}
+		
+		/**
+		 * Sets max number of lines allowed for each paragraph when checking quote headers.
+		 * 
+		 * @param maxParagraphLines
+		 * @return
+		 */
+		public Builder maxParagraphLines(int maxParagraphLines) {
+			this.maxParagraphLines = maxParagraphLines;
+			return this;
+		}
+		
+		/**
+		 * Sets max number of characters allowed for each line when checking quote headers.
+		 * 
+		 * @param maxNumCharsEachLine
+		 * @return
+		 */
+		public Builder maxNumCharsEachLine(int maxNumCharsEachLine) {
+			this.maxNumCharsEachLine = maxNumCharsEachLine;
+			return this;
+		}
+		
+		/**
+		 * Sets the regular expression engine used for signatures. Quote headers, and the
+		 * signature rules of locale packs, are matched in linear time with either engine,
+		 * unless they use constructs {@link RegexEngine#LINEAR_TIME} does not support.
+		 * {@link RegexEngine#LINEAR_TIME} guarantees that matching takes time linear in the length
+		 * of the paragraph for every rule it supports.
+		 * 
+		 * @param regexEngine
+		 * @return
+		 */
+		public Builder regexEngine(RegexEngine regexEngine) {
+			this.regexEngine = regexEngine;
+			return this;
+		}
+		
+		/**
+		 * Sets how long a single {@link EmailParser#parse(CharSequence)} call may take.
+		 * When the time is up, parse returns what it has classified so far, with the rest of the
+		 * email as one visible fragment, and {@link Email#isTruncated()} returns true.
+		 * Zero, the default, means no limit.
+		 * 
+		 * @param timeout
+		 * @param unit
+		 * @return
+		 */
+		public Builder timeout(long timeout, TimeUnit unit) {
+			this.timeoutNanos = unit.toNanos(timeout);
+			return this;
+		}
+		
+		/**
+		 * Sets the executor that {@link EmailParser#parseAsync(CharSequence)} and 
+		 * {@link EmailParser#parseReplyAsync(CharSequence)} run on. 
+		 * Null, the default, means a new virtual thread for each parse on Java 21 and later, 
+		 * and the common {@link java.util.concurrent.ForkJoinPool} before.
+		 * 
+		 * @param executor
+		 * @return
+		 */
+		public Builder executor(Executor executor) {
+			this.executor = executor;
+			return this;
+		}
+		
+		/**
+		 * Sets the cache that {@link EmailParser#parse(CharSequence)} and {@link EmailParser#parseReply(CharSequence)}
+		 * look up String bodies in before parsing them, and add their results to. 
+		 * Null, the default, means no cache. A cache can be shared by several parsers.
+		 * 
+		 * @param cache
+		 * @return
+		 */
+		public Builder cache(ParseCache cache) {
+			this.cache = cache;
+			return this;
+		}
+		
+		/**
+		 * Compiles the configuration into an immutable, thread-safe {@link EmailParser}.
+		 * 
+		 * @return
+		 */
+		public EmailParser build() {
+			return new EmailParser(this);
+		}
+	}
 }
@@ -2,16 +2,27 @@ package com.edlio.emailreplyparser;
 
 public class EmailReplyParser {
 
+	private static final EmailParser PARSER = new EmailParser();
+
 	public static Email read(String emailText) {
 		if (emailText == null)
 			emailText = "";
 
-		EmailParser parser = new EmailParser();
-		return parser.parse(emailText);
+		return PARSER.parse(emailText);
 	}
 	
 	public static String parseReply(String emailText) {
-		return read(emailText).getVisibleText();
+		if (emailText == null)
+			emailText = "";
+
+		return PARSER.parseReply(emailText);
+	}
+	
+	public static String parseReplyHtml(String html) {
+		if (html == null)
+			html = "";
+
+		return PARSER.parseReplyHtml(html);
 	}
 
 }
@@ -1,22 +1,107 @@
 package com.edlio.emailreplyparser;
 
+import java.io.IOException;
+
 public class Fragment {
+	private final CharSequence source;
+	private final int start;
+	private final int end;
+	// Built from the source on first use.
 	private String content;
 	private boolean isHidden;
 	private boolean isSignature;
 	private boolean isQuoted;
-	
+
 	public Fragment(String content, boolean isHidden, boolean isSignature, boolean isQuoted) {
+		this(content, content, 0, content.length(), isHidden, isSignature, isQuoted);
+	}
+
+	/**
+	 * Creates a fragment whose content is the lines of source between start and end.
+	 * The content is not copied out of source until {@link #getContent()} is called.
+	 *
+	 * @param source
+	 * @param start
+	 * @param end
+	 * @param isHidden
+	 * @param isSignature
+	 * @param isQuoted
+	 */
+	Fragment(CharSequence source, int start, int end, boolean isHidden, boolean isSignature, boolean isQuoted) {
+		this(null, source, start, end, isHidden, isSignature, isQuoted);
+	}
+
+	/**
+	 * Creates a fragment whose content is either given, or the lines of source between start and end.
+	 * When the content is given, start and end only tell where it is in the parsed text.
+	 *
+	 * @param content null to build it from source
+	 * @param source
+	 * @param start
+	 * @param end
+	 * @param isHidden
+	 * @param isSignature
+	 * @param isQuoted
+	 */
+	Fragment(String content, CharSequence source, int start, int end, boolean isHidden, boolean isSignature, boolean isQuoted) {
 		this.content 		= content;
+		this.source 		= source;
+		this.start 		= start;
+		this.end 		= end;
 		this.isHidden 		= isHidden;
 		this.isSignature 	= isSignature;
 		this.isQuoted 		= isQuoted;
 	}
 
+	/**
+	 * Returns the lines of the fragment, without trailing whitespace, joined by "\n".
+	 *
+	 * @return
+	 */
 	public String getContent() {
+		// A race only builds the same string twice.
+		String content = this.content;
+		if (content == null) {
+			content = Lines.join(source, start, end);
+			this.content = content;
+		}
 		return content;
 	}
 
+	/**
+	 * Writes the content to out, straight from the source if it has not been built yet.
+	 *
+	 * @param out
+	 * @throws IOException
+	 */
+	void writeContent(Appendable out) throws IOException {
+		String content = this.content;
+		if (content != null)
+			out.append(content);
+		else
+			Lines.join(source, start, end, out);
+	}
+
+	/**
+	 * Returns the offset in the parsed text where the fragment starts,
+	 * at the beginning of its first line.
+	 *
+	 * @return
+	 */
+	public int getStart() {
+		return start;
+	}
+
+	/**
+	 * Returns the offset in the parsed text where the fragment ends (exclusive),
+	 * after the last character of its last line that is not whitespace.
+	 *
+	 * @return
+	 */
+	public int getEnd() {
+		return end;
+	}
+
 	public boolean isHidden() {
 		return isHidden;
 	}
@@ -28,8 +113,8 @@ public class Fragment {
 	public boolean isQuoted() {
 		return isQuoted;
 	}
-	
+
 	public boolean isEmpty() {
-		return "".equals(this.content.replace("\n", ""));
+		return "".equals(this.getContent().replace("\n", ""));
 	}
 }
@@ -1,10 +1,11 @@
 package com.edlio.emailreplyparser;
 
-import java.util.List;
-
 
 public class FragmentDTO {
-	public List<String> lines;
+	/** Index of the first (top) line of the fragment. */
+	public int firstLine;
+	/** Index of the last (bottom) line of the fragment. */
+	public int lastLine;
 	public boolean isHidden = false;
 	public boolean isSignature = false;
 	public boolean isQuoted = false;
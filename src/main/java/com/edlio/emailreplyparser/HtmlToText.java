@@ -0,0 +1,668 @@
+package com.edlio.emailreplyparser;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Locale;
+
+/**
+ * The text of an HTML email, read from its markup in one pass, without building a document.
+ *
+ * The text is what the markup holds, with the lines an email client shows: a br ends a line,
+ * and the end of a p or of a heading (h1 to h6) adds a blank line, "\n\n". Character references,
+ * named (those of HTML 4 and &amp;apos;) or numeric, are decoded as they are read, and non-breaking
+ * spaces become spaces, so blank lines and trailing whitespace look the same to {@link EmailParser}
+ * as in plain text. The head, scripts, styles and comments add nothing. Whitespace is kept as it is
+ * in the markup, the way a text node holds it.
+ *
+ * This is a {@link Reader} of the text: the markup is read a few thousand chars at a time as
+ * the text is, so a converter over a Reader of the markup can be handed to
+ * {@link EmailParser#parse(Reader)} and the text never held as a whole. For markup already in
+ * memory, {@link #toText(CharSequence)} returns the whole text in one pass.
+ *
+ * A converter reads one markup, and is not thread-safe.
+ */
+public final class HtmlToText extends Reader {
+	private static final int BUFFER_SIZE = 8192;
+	// Longest tag or attribute name that is compared to a known one.
+	private static final int MAX_NAME = 16;
+	// Longest named character reference.
+	private static final int MAX_REFERENCE = 8;
+
+	// Start tags that close an open p.
+	private static final String[] CLOSE_P_START = { "address", "article", "aside", "blockquote", "center", "details", "dir", "div", "dl",
+			"fieldset", "figcaption", "figure", "footer", "form", "h1", "h2", "h3", "h4", "h5", "h6", "header", "hgroup", "hr", "main",
+			"menu", "nav", "ol", "p", "pre", "section", "table", "ul" };
+	// End tags that close an open p inside the element.
+	private static final String[] CLOSE_P_END = { "address", "article", "aside", "blockquote", "body", "caption", "center", "dd",
+			"details", "div", "dl", "dt", "fieldset", "figcaption", "figure", "footer", "form", "header", "html", "li", "main", "nav",
+			"section", "td", "th" };
+	private static final String[] HEADINGS = { "h1", "h2", "h3", "h4", "h5", "h6" };
+	// Elements whose content is text up to their end tag.
+	private static final String[] RAW_TEXT = { "script", "style", "textarea", "title" };
+
+	// Named character references, sorted, and what they stand for.
+	private static final String[] REFERENCE_NAMES = {
+			"AElig", "Aacute", "Acirc", "Agrave", "Alpha", "Aring", "Atilde", "Auml", "Beta", "Ccedil", "Chi", "Dagger",
+			"Delta", "ETH", "Eacute", "Ecirc", "Egrave", "Epsilon", "Eta", "Euml", "Gamma", "Iacute", "Icirc", "Igrave",
+			"Iota", "Iuml", "Kappa", "Lambda", "Mu", "Ntilde", "Nu", "OElig", "Oacute", "Ocirc", "Ograve", "Omega",
+			"Omicron", "Oslash", "Otilde", "Ouml", "Phi", "Pi", "Prime", "Psi", "Rho", "Scaron", "Sigma", "THORN", "Tau",
+			"Theta", "Uacute", "Ucirc", "Ugrave", "Upsilon", "Uuml", "Xi", "Yacute", "Yuml", "Zeta", "aacute", "acirc",
+			"acute", "aelig", "agrave", "alefsym", "alpha", "amp", "and", "ang", "apos", "aring", "asymp", "atilde",
+			"auml", "bdquo", "beta", "brvbar", "bull", "cap", "ccedil", "cedil", "cent", "chi", "circ", "clubs", "cong",
+			"copy", "crarr", "cup", "curren", "dArr", "dagger", "darr", "deg", "delta", "diams", "divide", "eacute",
+			"ecirc", "egrave", "empty", "emsp", "ensp", "epsilon", "equiv", "eta", "eth", "euml", "euro", "exist",
+			"fnof", "forall", "frac12", "frac14", "frac34", "frasl", "gamma", "ge", "gt", "hArr", "harr", "hearts",
+			"hellip", "iacute", "icirc", "iexcl", "igrave", "image", "infin", "int", "iota", "iquest", "isin", "iuml",
+			"kappa", "lArr", "lambda", "lang", "laquo", "larr", "lceil", "ldquo", "le", "lfloor", "lowast", "loz", "lrm",
+			"lsaquo", "lsquo", "lt", "macr", "mdash", "micro", "middot", "minus", "mu", "nabla", "nbsp", "ndash", "ne",
+			"ni", "not", "notin", "nsub", "ntilde", "nu", "oacute", "ocirc", "oelig", "ograve", "oline", "omega",
+			"omicron", "oplus", "or", "ordf", "ordm", "oslash", "otilde", "otimes", "ouml", "para", "part", "permil",
+			"perp", "phi", "pi", "piv", "plusmn", "pound", "prime", "prod", "prop", "psi", "quot", "rArr", "radic",
+			"rang", "raquo", "rarr", "rceil", "rdquo", "real", "reg", "rfloor", "rho", "rlm", "rsaquo", "rsquo", "sbquo",
+			"scaron", "sdot", "sect", "shy", "sigma", "sigmaf", "sim", "spades", "sub", "sube", "sum", "sup", "sup1",
+			"sup2", "sup3", "supe", "szlig", "tau", "there4", "theta", "thetasym", "thinsp", "thorn", "tilde", "times",
+			"trade", "uArr", "uacute", "uarr", "ucirc", "ugrave", "uml", "upsih", "upsilon", "uuml", "weierp", "xi",
+			"yacute", "yen", "yuml", "zeta", "zwj", "zwnj" };
+	private static final char[] REFERENCE_CHARS = {
+			'\u00c6', '\u00c1', '\u00c2', '\u00c0', '\u0391', '\u00c5', '\u00c3', '\u00c4', '\u0392', '\u00c7', '\u03a7',
+			'\u2021', '\u0394', '\u00d0', '\u00c9', '\u00ca', '\u00c8', '\u0395', '\u0397', '\u00cb', '\u0393', '\u00cd',
+			'\u00ce', '\u00cc', '\u0399', '\u00cf', '\u039a', '\u039b', '\u039c', '\u00d1', '\u039d', '\u0152', '\u00d3',
+			'\u00d4', '\u00d2', '\u03a9', '\u039f', '\u00d8', '\u00d5', '\u00d6', '\u03a6', '\u03a0', '\u2033', '\u03a8',
+			'\u03a1', '\u0160', '\u03a3', '\u00de', '\u03a4', '\u0398', '\u00da', '\u00db', '\u00d9', '\u03a5', '\u00dc',
+			'\u039e', '\u00dd', '\u0178', '\u0396', '\u00e1', '\u00e2', '\u00b4', '\u00e6', '\u00e0', '\u2135', '\u03b1',
+			'&', '\u2227', '\u2220', '\'', '\u00e5', '\u2248', '\u00e3', '\u00e4', '\u201e', '\u03b2', '\u00a6',
+			'\u2022', '\u2229', '\u00e7', '\u00b8', '\u00a2', '\u03c7', '\u02c6', '\u2663', '\u2245', '\u00a9', '\u21b5',
+			'\u222a', '\u00a4', '\u21d3', '\u2020', '\u2193', '\u00b0', '\u03b4', '\u2666', '\u00f7', '\u00e9', '\u00ea',
+			'\u00e8', '\u2205', '\u2003', '\u2002', '\u03b5', '\u2261', '\u03b7', '\u00f0', '\u00eb', '\u20ac', '\u2203',
+			'\u0192', '\u2200', '\u00bd', '\u00bc', '\u00be', '\u2044', '\u03b3', '\u2265', '>', '\u21d4', '\u2194',
+			'\u2665', '\u2026', '\u00ed', '\u00ee', '\u00a1', '\u00ec', '\u2111', '\u221e', '\u222b', '\u03b9', '\u00bf',
+			'\u2208', '\u00ef', '\u03ba', '\u21d0', '\u03bb', '\u2329', '\u00ab', '\u2190', '\u2308', '\u201c', '\u2264',
+			'\u230a', '\u2217', '\u25ca', '\u200e', '\u2039', '\u2018', '<', '\u00af', '\u2014', '\u00b5', '\u00b7',
+			'\u2212', '\u03bc', '\u2207', '\u00a0', '\u2013', '\u2260', '\u220b', '\u00ac', '\u2209', '\u2284', '\u00f1',
+			'\u03bd', '\u00f3', '\u00f4', '\u0153', '\u00f2', '\u203e', '\u03c9', '\u03bf', '\u2295', '\u2228', '\u00aa',
+			'\u00ba', '\u00f8', '\u00f5', '\u2297', '\u00f6', '\u00b6', '\u2202', '\u2030', '\u22a5', '\u03c6', '\u03c0',
+			'\u03d6', '\u00b1', '\u00a3', '\u2032', '\u220f', '\u221d', '\u03c8', '"', '\u21d2', '\u221a', '\u232a',
+			'\u00bb', '\u2192', '\u2309', '\u201d', '\u211c', '\u00ae', '\u230b', '\u03c1', '\u200f', '\u203a', '\u2019',
+			'\u201a', '\u0161', '\u22c5', '\u00a7', '\u00ad', '\u03c3', '\u03c2', '\u223c', '\u2660', '\u2282', '\u2286',
+			'\u2211', '\u2283', '\u00b9', '\u00b2', '\u00b3', '\u2287', '\u00df', '\u03c4', '\u2234', '\u03b8', '\u03d1',
+			'\u2009', '\u00fe', '\u02dc', '\u00d7', '\u2122', '\u21d1', '\u00fa', '\u2191', '\u00fb', '\u00f9', '\u00a8',
+			'\u03d2', '\u03c5', '\u00fc', '\u2118', '\u03be', '\u00fd', '\u00a5', '\u00ff', '\u03b6', '\u200d', '\u200c' };
+
+	// Exactly one of them is set.
+	private final Reader in;
+	private final CharSequence markup;
+	private int markupPos;
+	private final boolean beforeQuote;
+
+	private final char[] buffer = new char[BUFFER_SIZE];
+	private int pos;
+	private int limit;
+	private boolean eof;
+
+	// Text read from the markup and not handed out yet.
+	private StringBuilder text;
+	private int textPos;
+	private boolean done;
+
+	// The name of the tag being read, in lower case, and of its attributes.
+	private final char[] name = new char[MAX_NAME];
+	private int nameLength;
+	private final char[] attribute = new char[MAX_NAME];
+	private int attributeLength;
+	private final char[] reference = new char[MAX_REFERENCE];
+	// The attributes that tell quote containers apart, of the tag being read.
+	private final StringBuilder value = new StringBuilder();
+	private String classValue;
+	private String idValue;
+	private String typeValue;
+	private String styleValue;
+
+	private boolean inHead;
+	private boolean paragraphOpen;
+
+	/**
+	 * Creates a converter of the markup the reader gives.
+	 *
+	 * @param html
+	 */
+	public HtmlToText(Reader html) {
+		this(html, null, false);
+	}
+
+	/**
+	 * Creates a converter of the markup the reader gives, or of the markup in memory.
+	 * With beforeQuote, the text stops at the first quote container, see {@link #beforeQuote(CharSequence)}.
+	 *
+	 * @param in
+	 * @param markup
+	 * @param beforeQuote
+	 */
+	HtmlToText(Reader in, CharSequence markup, boolean beforeQuote) {
+		this.in = in;
+		this.markup = markup;
+		this.beforeQuote = beforeQuote;
+		this.text = new StringBuilder();
+	}
+
+	/**
+	 * Returns the text of the markup.
+	 *
+	 * @param html
+	 * @return
+	 */
+	public static String toText(CharSequence html) {
+		return new HtmlToText(null, html, false).readAll(html.length());
+	}
+
+	/**
+	 * Returns the text of the markup up to the first container an email client puts quoted history in:
+	 * a div of class gmail_quote (Gmail) or moz-cite-prefix (Thunderbird), a blockquote of type cite
+	 * (Apple Mail, Thunderbird), the divRplyFwdMsg div of Outlook on the web, or the div with a top
+	 * border Outlook puts above the headers of the message it quotes. The markup after it is not read.
+	 *
+	 * @param html
+	 * @return
+	 */
+	static String beforeQuote(CharSequence html) {
+		return new HtmlToText(null, html, true).readAll(html.length());
+	}
+
+	/**
+	 * Returns a converter of the markup the reader gives, whose text stops at the first quote container.
+	 *
+	 * @param html
+	 * @return
+	 */
+	static HtmlToText beforeQuote(Reader html) {
+		return new HtmlToText(html, null, true);
+	}
+
+	private String readAll(int capacity) {
+		text = new StringBuilder(Math.min(capacity, 1 << 16));
+		try {
+			while (!done)
+				step();
+		} catch (IOException e) {
+			// A CharSequence does not throw.
+			throw new IllegalStateException(e);
+		}
+		return text.toString();
+	}
+
+	@Override
+	public int read(char[] cbuf, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		while (textPos == text.length()) {
+			if (done)
+				return -1;
+			text.setLength(0);
+			textPos = 0;
+			step();
+		}
+		int n = Math.min(len, text.length() - textPos);
+		text.getChars(textPos, textPos + n, cbuf, off);
+		textPos += n;
+		return n;
+	}
+
+	@Override
+	public void close() throws IOException {
+		done = true;
+		if (in != null)
+			in.close();
+	}
+
+	/**
+	 * Reads the next run of text, tag, comment or character reference.
+	 *
+	 * @throws IOException
+	 */
+	private void step() throws IOException {
+		int c = peek(0);
+		if (c == -1) {
+			closeParagraph();
+			done = true;
+			return;
+		}
+		if (c == '<') {
+			int next = peek(1);
+			if (next == '!' || next == '?') {
+				skipMarkupDeclaration();
+				return;
+			}
+			if (next == '/' && isLetter(peek(2))) {
+				pos += 2;
+				readName();
+				readAttributes(false);
+				endTag();
+				return;
+			}
+			if (isLetter(next)) {
+				pos++;
+				readName();
+				readAttributes(is("div") || is("blockquote"));
+				if (beforeQuote && isQuoteContainer())
+					done = true;
+				else
+					startTag();
+				return;
+			}
+			pos++;
+			append('<');
+			return;
+		}
+		if (c == '&') {
+			readReference(!inHead);
+			return;
+		}
+		// The text up to the next tag or reference, or the end of the buffer.
+		while (pos < limit) {
+			char t = buffer[pos];
+			if (t == '<' || t == '&')
+				break;
+			append(t);
+			pos++;
+		}
+	}
+
+	private void startTag() throws IOException {
+		if (is("br")) {
+			append('\n');
+		} else if (is("head")) {
+			inHead = true;
+		} else if (is("body")) {
+			inHead = false;
+		} else if (isAny(RAW_TEXT)) {
+			readRawText(is("textarea"));
+		} else if (isAny(CLOSE_P_START)) {
+			closeParagraph();
+			if (is("p"))
+				paragraphOpen = true;
+		}
+	}
+
+	private void endTag() {
+		if (is("br")) {
+			append('\n');
+		} else if (is("head")) {
+			inHead = false;
+		} else if (is("p")) {
+			// Without a p to close, there is an empty one.
+			paragraphOpen = false;
+			text.append("\n\n");
+		} else if (isAny(HEADINGS)) {
+			closeParagraph();
+			text.append("\n\n");
+		} else if (isAny(CLOSE_P_END)) {
+			closeParagraph();
+		}
+	}
+
+	private void closeParagraph() {
+		if (paragraphOpen) {
+			paragraphOpen = false;
+			text.append("\n\n");
+		}
+	}
+
+	/**
+	 * Adds a char of the text, unless it is in the head.
+	 *
+	 * @param c
+	 */
+	private void append(char c) {
+		if (!inHead)
+			text.append(c == '\u00a0' ? ' ' : c);
+	}
+
+	/**
+	 * Reads the content of a script, style, title or textarea, up to its end tag, which is left to read.
+	 *
+	 * @param shown if it is text of the email
+	 * @throws IOException
+	 */
+	private void readRawText(boolean shown) throws IOException {
+		int c;
+		while ((c = peek(0)) != -1) {
+			if (c == '<' && peek(1) == '/' && isEndOfRawText())
+				return;
+			if (c == '&' && shown) {
+				readReference(!inHead);
+				continue;
+			}
+			if (shown)
+				append((char) c);
+			pos++;
+		}
+	}
+
+	/**
+	 * Tells if the "&lt;/" at pos is followed by the name of the tag being read.
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	private boolean isEndOfRawText() throws IOException {
+		for (int i = 0; i < nameLength; i++) {
+			if (Character.toLowerCase(peek(2 + i)) != name[i])
+				return false;
+		}
+		int after = peek(2 + nameLength);
+		return after == -1 || after == '>' || after == '/' || isSpace(after);
+	}
+
+	private boolean isQuoteContainer() {
+		if (is("blockquote"))
+			return "cite".equalsIgnoreCase(typeValue);
+		if (!is("div"))
+			return false;
+		if (hasClass("gmail_quote") || hasClass("moz-cite-prefix") || "divRplyFwdMsg".equals(idValue))
+			return true;
+		if (styleValue == null)
+			return false;
+		// The separator of Outlook: "border:none;border-top:solid #E1E1E1 1.0pt;padding:3.0pt 0in 0in 0in".
+		String style = styleValue.replaceAll("\\s+", "").toLowerCase(Locale.ROOT);
+		return style.contains("border:none") && style.contains("border-top:solid");
+	}
+
+	private boolean hasClass(String className) {
+		if (classValue == null)
+			return false;
+		int from = 0;
+		int at;
+		while ((at = classValue.indexOf(className, from)) != -1) {
+			int end = at + className.length();
+			if ((at == 0 || isSpace(classValue.charAt(at - 1))) && (end == classValue.length() || isSpace(classValue.charAt(end))))
+				return true;
+			from = at + 1;
+		}
+		return false;
+	}
+
+	private void readName() throws IOException {
+		nameLength = 0;
+		int c;
+		while ((c = peek(0)) != -1 && !isSpace(c) && c != '/' && c != '>') {
+			if (nameLength < MAX_NAME)
+				name[nameLength] = Character.toLowerCase((char) c);
+			nameLength++;
+			pos++;
+		}
+	}
+
+	/**
+	 * Reads the attributes up to the end of the tag, keeping the values of the ones that tell
+	 * quote containers apart if asked to.
+	 *
+	 * @param keep
+	 * @throws IOException
+	 */
+	private void readAttributes(boolean keep) throws IOException {
+		classValue = null;
+		idValue = null;
+		typeValue = null;
+		styleValue = null;
+		int c;
+		while ((c = peek(0)) != -1) {
+			pos++;
+			if (c == '>')
+				return;
+			if (isSpace(c) || c == '/')
+				continue;
+			attributeLength = 0;
+			while (true) {
+				if (attributeLength < MAX_NAME)
+					attribute[attributeLength] = Character.toLowerCase((char) c);
+				attributeLength++;
+				c = peek(0);
+				if (c == -1 || isSpace(c) || c == '=' || c == '>' || c == '/')
+					break;
+				pos++;
+			}
+			while (isSpace(peek(0)))
+				pos++;
+			if (peek(0) != '=')
+				continue;
+			pos++;
+			while (isSpace(peek(0)))
+				pos++;
+			boolean kept = keep && (isAttribute("class") || isAttribute("id") || isAttribute("type") || isAttribute("style"));
+			value.setLength(0);
+			c = peek(0);
+			if (c == '"' || c == '\'') {
+				int quote = c;
+				pos++;
+				while ((c = peek(0)) != -1) {
+					pos++;
+					if (c == quote)
+						break;
+					if (kept)
+						value.append((char) c);
+				}
+			} else {
+				while ((c = peek(0)) != -1 && !isSpace(c) && c != '>') {
+					pos++;
+					if (kept)
+						value.append((char) c);
+				}
+			}
+			if (!kept)
+				continue;
+			if (isAttribute("class"))
+				classValue = value.toString();
+			else if (isAttribute("id"))
+				idValue = value.toString();
+			else if (isAttribute("type"))
+				typeValue = value.toString();
+			else
+				styleValue = value.toString();
+		}
+	}
+
+	/**
+	 * Skips a comment, a doctype or a processing instruction.
+	 *
+	 * @throws IOException
+	 */
+	private void skipMarkupDeclaration() throws IOException {
+		int c;
+		if (peek(2) == '-' && peek(3) == '-' && peek(1) == '!') {
+			pos += 4;
+			int dashes = 0;
+			while ((c = peek(0)) != -1) {
+				pos++;
+				if (c == '>' && dashes >= 2)
+					return;
+				dashes = c == '-' ? dashes + 1 : 0;
+			}
+			return;
+		}
+		while ((c = peek(0)) != -1) {
+			pos++;
+			if (c == '>')
+				return;
+		}
+	}
+
+	/**
+	 * Reads the character reference at the "&amp;" at pos, adding what it stands for to the text
+	 * if asked to. What is not a known reference is text.
+	 *
+	 * @param shown
+	 * @throws IOException
+	 */
+	private void readReference(boolean shown) throws IOException {
+		pos++;
+		if (peek(0) == '#') {
+			int offset = peek(1) == 'x' || peek(1) == 'X' ? 2 : 1;
+			int radix = offset == 2 ? 16 : 10;
+			long codePoint = 0;
+			int digits = 0;
+			int digit;
+			// Eight digits are more than any code point has.
+			while (digits < 8 && (digit = digit(peek(offset + digits), radix)) != -1) {
+				codePoint = codePoint * radix + digit;
+				digits++;
+			}
+			if (digits == 0) {
+				if (shown)
+					text.append('&');
+				return;
+			}
+			pos += offset + digits;
+			// More digits only make it larger than any code point.
+			while (digit(peek(0), radix) != -1) {
+				codePoint = Long.MAX_VALUE;
+				pos++;
+			}
+			if (peek(0) == ';')
+				pos++;
+			if (shown) {
+				if (codePoint == 0 || codePoint > Character.MAX_CODE_POINT
+						|| (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE))
+					text.append('\ufffd');
+				else if (codePoint == '\u00a0')
+					text.append(' ');
+				else
+					text.appendCodePoint((int) codePoint);
+			}
+			return;
+		}
+		int length = 0;
+		while (length < MAX_REFERENCE && isLetterOrDigit(peek(length))) {
+			reference[length] = (char) peek(length);
+			length++;
+		}
+		int index = peek(length) == ';' ? lookUp(length) : -1;
+		if (index < 0) {
+			if (shown)
+				text.append('&');
+			return;
+		}
+		pos += length + 1;
+		if (shown)
+			text.append(REFERENCE_CHARS[index] == '\u00a0' ? ' ' : REFERENCE_CHARS[index]);
+	}
+
+	/**
+	 * Returns the index of the first length chars of reference in REFERENCE_NAMES, or -1.
+	 *
+	 * @param length
+	 * @return
+	 */
+	private int lookUp(int length) {
+		int low = 0;
+		int high = REFERENCE_NAMES.length - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			String candidate = REFERENCE_NAMES[middle];
+			int compared = 0;
+			for (int i = 0; compared == 0 && i < Math.min(length, candidate.length()); i++)
+				compared = candidate.charAt(i) - reference[i];
+			if (compared == 0)
+				compared = candidate.length() - length;
+			if (compared < 0)
+				low = middle + 1;
+			else if (compared > 0)
+				high = middle - 1;
+			else
+				return middle;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the char ahead of pos by the given offset, reading more markup if needed, or -1 past the end.
+	 *
+	 * @param ahead less than the size of the buffer
+	 * @return
+	 * @throws IOException
+	 */
+	private int peek(int ahead) throws IOException {
+		while (pos + ahead >= limit) {
+			if (eof || !fill())
+				return -1;
+		}
+		return buffer[pos + ahead];
+	}
+
+	/**
+	 * Moves what is left to read to the start of the buffer and reads more markup after it.
+	 * Returns false at the end of the markup.
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	private boolean fill() throws IOException {
+		System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+		limit -= pos;
+		pos = 0;
+		int read;
+		if (in != null) {
+			read = in.read(buffer, limit, buffer.length - limit);
+		} else {
+			read = Math.min(buffer.length - limit, markup.length() - markupPos);
+			if (markup instanceof String)
+				((String) markup).getChars(markupPos, markupPos + read, buffer, limit);
+			else
+				for (int i = 0; i < read; i++)
+					buffer[limit + i] = markup.charAt(markupPos + i);
+			markupPos += read;
+			if (read == 0)
+				read = -1;
+		}
+		if (read == -1) {
+			eof = true;
+			return false;
+		}
+		limit += read;
+		return true;
+	}
+
+	private boolean is(String tag) {
+		return equals(name, nameLength, tag);
+	}
+
+	private boolean isAny(String[] tags) {
+		for (String tag : tags) {
+			if (is(tag))
+				return true;
+		}
+		return false;
+	}
+
+	private boolean isAttribute(String attributeName) {
+		return equals(attribute, attributeLength, attributeName);
+	}
+
+	private static boolean equals(char[] chars, int length, String s) {
+		if (length != s.length())
+			return false;
+		for (int i = 0; i < length; i++) {
+			if (chars[i] != s.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	private static boolean isLetter(int c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+	}
+
+	private static int digit(int c, int radix) {
+		if (c >= '0' && c <= '9')
+			return c - '0';
+		if (radix == 16 && ((c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F')))
+			return (c | 0x20) - 'a' + 10;
+		return -1;
+	}
+
+	private static boolean isLetterOrDigit(int c) {
+		return isLetter(c) || (c >= '0' && c <= '9');
+	}
+
+	private static boolean isSpace(int c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+	}
+}
@@ -0,0 +1,91 @@
+package com.edlio.emailreplyparser;
+
+import java.util.Arrays;
+
+/**
+ * Lines of an email read from a stream that are not classified yet.
+ *
+ * The lines are kept as {@link Lines} over a buffer of their own, so the parser can classify
+ * them like any other text, along with where each line is in the email.
+ * Lines are added at the end and removed from the start once they are classified.
+ */
+class LineBuffer {
+	private StringBuilder text = new StringBuilder();
+	private Lines lines = new Lines(text, 16);
+	// Offsets in the email of the start and end of each line.
+	private int[] starts = new int[16];
+	private int[] ends = new int[16];
+
+	/**
+	 * Adds a line without trailing whitespace.
+	 *
+	 * @param line
+	 * @param start offset of the line in the email
+	 * @param end offset of the end of the line in the email
+	 */
+	void add(CharSequence line, int start, int end) {
+		int count = lines.count();
+		if (count == starts.length) {
+			starts = Arrays.copyOf(starts, count * 2);
+			ends = Arrays.copyOf(ends, count * 2);
+		}
+		starts[count] = start;
+		ends[count] = end;
+		int at = text.length();
+		text.append(line);
+		lines.add(at, text.length());
+	}
+
+	/**
+	 * Returns the lines, numbered from the first one in the buffer.
+	 *
+	 * @return
+	 */
+	Lines lines() {
+		return lines;
+	}
+
+	int count() {
+		return lines.count();
+	}
+
+	/**
+	 * Returns the offset in the email of the start of a line.
+	 *
+	 * @param line
+	 * @return
+	 */
+	int start(int line) {
+		return starts[line];
+	}
+
+	/**
+	 * Returns the offset in the email of the end of a line, without trailing whitespace.
+	 *
+	 * @param line
+	 * @return
+	 */
+	int end(int line) {
+		return ends[line];
+	}
+
+	/**
+	 * Removes the first n lines.
+	 *
+	 * @param n
+	 */
+	void removeFirst(int n) {
+		int count = lines.count();
+		StringBuilder rest = new StringBuilder(Math.max(16, text.length() - (n < count ? lines.start(n) : text.length())));
+		Lines kept = new Lines(rest, Math.max(16, count - n));
+		for (int i = n; i < count; i++) {
+			int at = rest.length();
+			rest.append(text, lines.start(i), lines.end(i));
+			kept.add(at, rest.length());
+		}
+		System.arraycopy(starts, n, starts, 0, count - n);
+		System.arraycopy(ends, n, ends, 0, count - n);
+		text = rest;
+		lines = kept;
+	}
+}
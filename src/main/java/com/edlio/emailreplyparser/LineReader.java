@@ -0,0 +1,174 @@
+package com.edlio.emailreplyparser;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * Reads the lines of an email from a {@link Reader}, one at a time,
+ * splitting them exactly like {@link Lines#scan(CharSequence)}.
+ *
+ * "\r\n", "\n" and "\r" end a line, trailing whitespace is removed, and empty lines at the end
+ * of the text are dropped. Empty lines are held back until a line with content follows them,
+ * so only their offsets are kept in the meantime.
+ */
+class LineReader {
+	private final Reader reader;
+	private final char[] buffer = new char[8192];
+	private int pos;
+	private int limit;
+	// Offset in the text of buffer[pos].
+	private int offset;
+	private boolean eof;
+	private boolean sawLineBreak;
+	private boolean finished;
+
+	// Empty lines waiting for a line with content, and the next one to return.
+	private int[] emptyStarts = new int[16];
+	private int emptyCount;
+	private int emptyIndex;
+	// A line with content read after empty lines, returned once they are.
+	private boolean held;
+	private int heldStart;
+	private int heldEnd;
+
+	private final StringBuilder line = new StringBuilder();
+	// The current line is one of the held back empty lines, not line.
+	private boolean returningEmpty;
+	private int start;
+	private int end;
+
+	LineReader(Reader reader) {
+		this.reader = reader;
+	}
+
+	/**
+	 * Moves to the next line.
+	 *
+	 * @return false at the end of the text
+	 * @throws IOException
+	 */
+	boolean next() throws IOException {
+		if (emptyIndex < emptyCount) {
+			returningEmpty = true;
+			start = emptyStarts[emptyIndex++];
+			end = start;
+			return true;
+		}
+		returningEmpty = false;
+		if (held) {
+			held = false;
+			start = heldStart;
+			end = heldEnd;
+			emptyCount = 0;
+			emptyIndex = 0;
+			return true;
+		}
+		while (!finished) {
+			int lineStart = offset;
+			line.setLength(0);
+			if (!readLine()) {
+				finished = true;
+				// A text without line breaks is a single line, even an empty one.
+				if (line.length() == 0 && sawLineBreak)
+					return false;
+			} else if (line.length() == 0) {
+				// Only kept if a line with content follows.
+				if (emptyCount == emptyStarts.length)
+					emptyStarts = Arrays.copyOf(emptyStarts, emptyCount * 2);
+				emptyStarts[emptyCount++] = lineStart;
+				continue;
+			}
+			setLine(lineStart);
+			if (emptyCount > 0) {
+				held = true;
+				heldStart = start;
+				heldEnd = end;
+				return next();
+			}
+			return true;
+		}
+		return false;
+	}
+
+	private void setLine(int lineStart) {
+		int length = line.length();
+		while (length > 0 && Character.isWhitespace(line.charAt(length - 1)))
+			length--;
+		line.setLength(length);
+		start = lineStart;
+		end = lineStart + length;
+	}
+
+	/**
+	 * Reads the characters up to the next line break into line, and the line break.
+	 *
+	 * @return true if a line break was found
+	 * @throws IOException
+	 */
+	private boolean readLine() throws IOException {
+		while (true) {
+			if (pos == limit && !fill())
+				return false;
+			char c = buffer[pos++];
+			offset++;
+			if (c == '\n' || c == '\r') {
+				sawLineBreak = true;
+				if (c == '\r') {
+					if (pos == limit)
+						fill();
+					if (pos < limit && buffer[pos] == '\n') {
+						pos++;
+						offset++;
+					}
+				}
+				return true;
+			}
+			line.append(c);
+		}
+	}
+
+	private boolean fill() throws IOException {
+		if (eof)
+			return false;
+		int n = reader.read(buffer, 0, buffer.length);
+		while (n == 0)
+			n = reader.read(buffer, 0, buffer.length);
+		if (n < 0) {
+			eof = true;
+			pos = limit = 0;
+			return false;
+		}
+		pos = 0;
+		limit = n;
+		return true;
+	}
+
+	/**
+	 * Returns the current line, without trailing whitespace.
+	 * The content changes with the next call to {@link #next()}.
+	 *
+	 * @return
+	 */
+	CharSequence line() {
+		return returningEmpty ? "" : line;
+	}
+
+	/**
+	 * Returns the offset in the text of the start of the current line.
+	 *
+	 * @return
+	 */
+	int start() {
+		return start;
+	}
+
+	/**
+	 * Returns the offset in the text of the end of the current line, without trailing whitespace.
+	 *
+	 * @return
+	 */
+	int end() {
+		return end;
+	}
+}
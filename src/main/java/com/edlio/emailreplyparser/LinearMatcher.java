@@ -0,0 +1,691 @@
+package com.edlio.emailreplyparser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Finds matches of several regular expressions at once in time linear in the length of the text.
+ *
+ * The {@link RegexNode} trees are compiled into a single Thompson NFA, one branch per rule,
+ * which is simulated on all positions of the text in lockstep (as in RE2 or the Pike VM,
+ * without captures). Each code point of the text is looked at once, and each NFA state
+ * at most once per code point, so the cost is bounded by the text length times the program
+ * size no matter what the text looks like. Backtracking never happens.
+ *
+ * The simulation is cached as a lazy DFA, as RE2 does: a DFA state is the list of NFA states
+ * the simulation is in, and its successor for each class of code points, and for each set of
+ * assertions that hold where the code point is, is worked out the first time a text needs it
+ * and kept. Once the texts have been through the usual paths, a code point costs one lookup
+ * in the table of the current state, however many rules there are. The states are shared by
+ * all the threads using the matcher. A thread works out what a state is missing with its own
+ * scratch, and only takes a lock to add a new state to the set, so threads warming up the DFA
+ * do not wait on each other while they simulate the NFA, and no monitor is ever held.
+ * When there would be more than {@link #MAX_DFA_STATES}, no state is added anymore and
+ * the texts that need a new one are simulated on the NFA.
+ *
+ * Anchors and line terminators follow {@link java.util.regex.Pattern}.
+ */
+class LinearMatcher {
+	/** Programs larger than this are rejected, to keep the per-character cost bounded. */
+	static final int MAX_PROGRAM_SIZE = 1 << 16;
+	/** DFA states kept at most, to bound the memory of the cache. */
+	static final int MAX_DFA_STATES = 4096;
+	// Bounded repeats this long are run unbounded on the texts they cannot tell apart.
+	private static final int LONG_REPEAT = 64;
+
+	private static final int CHAR = 0;
+	private static final int SPLIT = 1;
+	private static final int JMP = 2;
+	private static final int ASSERT = 3;
+	private static final int MATCH = 4;
+	// A DFA result that is not worked out yet.
+	private static final int UNKNOWN = -2;
+
+	// Instruction i is op[i] with the operands x[i] and y[i]:
+	// CHAR set, SPLIT target target, JMP target, ASSERT kind, MATCH rule.
+	private final int[] op;
+	private final int[] x;
+	private final int[] y;
+	private final int start;
+
+	private final RegexNode.CharSet[] sets;
+	// Membership of the ASCII code points, for each set.
+	private final long[] asciiLow;
+	private final long[] asciiHigh;
+	// The assertion kinds the program uses, as a mask of 1 << kind.
+	private final int assertionKinds;
+
+	// Classes of code points that are in the same sets: the first code point of each
+	// interval of the same sets, the class of each interval, and the class of each ASCII char.
+	private final int[] intervalStarts;
+	private final int[] intervalClasses;
+	private final int[] asciiClasses;
+	private final int classCount;
+
+	// The lazy DFA. The states are only added to the map under the lock. Their tables are
+	// filled in and read without it.
+	private final ReentrantLock dfaLock = new ReentrantLock();
+	private final Map<Kernel, DfaState> dfaStates = new HashMap<Kernel, DfaState>();
+	private final DfaState dfaStart;
+
+	// The same rules with the long bounded repeats made unbounded, for the texts no longer
+	// than relaxedLength, or null if the rules have no such repeat.
+	private final LinearMatcher relaxed;
+	private final int relaxedLength;
+
+	/**
+	 * Compiles the rules. A match of rules.get(i) is reported as ruleIds[i].
+	 *
+	 * @param rules
+	 * @param ruleIds
+	 * @throws RegexParser.UnsupportedRegexException if the program would be too large
+	 */
+	LinearMatcher(List<RegexNode> rules, int[] ruleIds) {
+		this(rules, ruleIds, true);
+	}
+
+	private LinearMatcher(List<RegexNode> rules, int[] ruleIds, boolean relax) {
+		Compiler compiler = new Compiler();
+		// A chain of splits to the start of each rule.
+		for (int i = 0; i < rules.size(); i++) {
+			int split = -1;
+			if (i < rules.size() - 1)
+				split = compiler.emit(SPLIT, compiler.size + 1, 0);
+			compiler.compile(rules.get(i));
+			compiler.emit(MATCH, ruleIds[i], 0);
+			if (split != -1)
+				compiler.y[split] = compiler.size;
+		}
+
+		this.op = Arrays.copyOf(compiler.op, compiler.size);
+		this.x = Arrays.copyOf(compiler.x, compiler.size);
+		this.y = Arrays.copyOf(compiler.y, compiler.size);
+		this.start = rules.isEmpty() ? -1 : 0;
+
+		this.sets = compiler.sets.toArray(new RegexNode.CharSet[compiler.sets.size()]);
+		this.asciiLow = new long[sets.length];
+		this.asciiHigh = new long[sets.length];
+		for (int i = 0; i < sets.length; i++) {
+			for (int c = 0; c < 128; c++) {
+				if (!sets[i].contains(c))
+					continue;
+				if (c < 64)
+					asciiLow[i] |= 1L << c;
+				else
+					asciiHigh[i] |= 1L << (c - 64);
+			}
+		}
+		int kinds = 0;
+		for (int pc = 0; pc < op.length; pc++) {
+			if (op[pc] == ASSERT)
+				kinds |= 1 << x[pc];
+		}
+		this.assertionKinds = kinds;
+
+		TreeSet<Integer> starts = new TreeSet<Integer>();
+		starts.add(0);
+		for (RegexNode.CharSet set : sets) {
+			for (int i = 0; i < set.ranges.length; i += 2) {
+				starts.add(set.ranges[i]);
+				if (set.ranges[i + 1] < Character.MAX_CODE_POINT)
+					starts.add(set.ranges[i + 1] + 1);
+			}
+		}
+		this.intervalStarts = new int[starts.size()];
+		this.intervalClasses = new int[starts.size()];
+		Map<BitSet, Integer> classes = new HashMap<BitSet, Integer>();
+		int interval = 0;
+		for (int start : starts) {
+			BitSet members = new BitSet(sets.length);
+			for (int i = 0; i < sets.length; i++) {
+				if (sets[i].contains(start))
+					members.set(i);
+			}
+			Integer charClass = classes.get(members);
+			if (charClass == null) {
+				charClass = classes.size();
+				classes.put(members, charClass);
+			}
+			intervalStarts[interval] = start;
+			intervalClasses[interval++] = charClass;
+		}
+		this.classCount = classes.size();
+		this.asciiClasses = new int[128];
+		for (int c = 0; c < 128; c++)
+			asciiClasses[c] = intervalClasses[interval(c)];
+
+		this.dfaStart = new DfaState(new int[0], kinds + 1, classCount);
+		dfaStates.put(new Kernel(dfaStart.kernel), dfaStart);
+
+		// A repeat of at most n matches no more than n code points of a text that has n or fewer,
+		// so there it can go on without bound. This spares the DFA a state for every count
+		// of .{1,500} and the like.
+		int length = Integer.MAX_VALUE;
+		for (RegexNode rule : rules)
+			length = Math.min(length, longRepeat(rule));
+		if (relax && length != Integer.MAX_VALUE) {
+			List<RegexNode> relaxedRules = new ArrayList<RegexNode>();
+			for (RegexNode rule : rules)
+				relaxedRules.add(relax(rule, length));
+			this.relaxed = new LinearMatcher(relaxedRules, ruleIds, false);
+			this.relaxedLength = length;
+		} else {
+			this.relaxed = null;
+			this.relaxedLength = 0;
+		}
+	}
+
+	/**
+	 * Returns the smallest maximum of the bounded repeats of at least {@link #LONG_REPEAT}
+	 * in the node, or Integer.MAX_VALUE if it has none.
+	 */
+	private static int longRepeat(RegexNode node) {
+		int length = Integer.MAX_VALUE;
+		if (node instanceof RegexNode.Repeat) {
+			RegexNode.Repeat repeat = (RegexNode.Repeat) node;
+			if (repeat.max >= LONG_REPEAT)
+				length = repeat.max;
+			length = Math.min(length, longRepeat(repeat.node));
+		} else if (node instanceof RegexNode.Concat) {
+			for (RegexNode child : ((RegexNode.Concat) node).nodes)
+				length = Math.min(length, longRepeat(child));
+		} else if (node instanceof RegexNode.Alternate) {
+			for (RegexNode child : ((RegexNode.Alternate) node).nodes)
+				length = Math.min(length, longRepeat(child));
+		}
+		return length;
+	}
+
+	/**
+	 * Returns the node with its bounded repeats of a maximum of at least the given length unbounded.
+	 */
+	private static RegexNode relax(RegexNode node, int length) {
+		if (node instanceof RegexNode.Repeat) {
+			RegexNode.Repeat repeat = (RegexNode.Repeat) node;
+			int max = repeat.max != RegexNode.Repeat.UNBOUNDED && repeat.max >= length ? RegexNode.Repeat.UNBOUNDED : repeat.max;
+			return new RegexNode.Repeat(relax(repeat.node, length), repeat.min, max);
+		} else if (node instanceof RegexNode.Concat) {
+			List<RegexNode> nodes = new ArrayList<RegexNode>();
+			for (RegexNode child : ((RegexNode.Concat) node).nodes)
+				nodes.add(relax(child, length));
+			return new RegexNode.Concat(nodes);
+		} else if (node instanceof RegexNode.Alternate) {
+			List<RegexNode> nodes = new ArrayList<RegexNode>();
+			for (RegexNode child : ((RegexNode.Alternate) node).nodes)
+				nodes.add(relax(child, length));
+			return new RegexNode.Alternate(nodes);
+		}
+		return node;
+	}
+
+	/**
+	 * Returns the id of a rule that matches somewhere in the text, or -1.
+	 *
+	 * @param text
+	 * @return
+	 */
+	int find(CharSequence text) {
+		return find(text, new Scratch());
+	}
+
+	/**
+	 * Returns the id of a rule that matches somewhere in the text, or -1,
+	 * reusing the thread lists of the scratch.
+	 *
+	 * @param text
+	 * @param scratch
+	 * @return
+	 */
+	int find(CharSequence text, Scratch scratch) {
+		if (start == -1)
+			return -1;
+		if (relaxed != null && text.length() <= relaxedLength)
+			return relaxed.find(text, scratch);
+		int rule = findDfa(text, scratch);
+		if (rule != UNKNOWN)
+			return rule;
+		return findNfa(text, scratch);
+	}
+
+	/**
+	 * Runs the lazy DFA on the text. Returns the id of a rule that matches, -1, or UNKNOWN
+	 * if the text needs a state there is no room for.
+	 *
+	 * @param text
+	 * @param scratch
+	 * @return
+	 */
+	private int findDfa(CharSequence text, Scratch scratch) {
+		int n = text.length();
+		DfaState state = dfaStart;
+		int pos = 0;
+		while (true) {
+			int context = assertionKinds == 0 ? 0 : context(text, pos);
+			int rule = state.matches[context];
+			if (rule == UNKNOWN)
+				rule = match(state, context, scratch);
+			if (rule != -1)
+				return rule;
+			if (pos >= n)
+				return -1;
+			int cp = text.charAt(pos);
+			if (Character.isHighSurrogate((char) cp))
+				cp = Character.codePointAt(text, pos);
+			int charClass = cp < 128 ? asciiClasses[cp] : intervalClasses[interval(cp)];
+			DfaState next = state.next[context * classCount + charClass];
+			if (next == null) {
+				next = step(state, context, cp, charClass, scratch);
+				if (next == null)
+					return UNKNOWN;
+			}
+			state = next;
+			pos += Character.charCount(cp);
+		}
+	}
+
+	/**
+	 * Returns the id of the rule the state matches when the assertions of the context hold, or -1,
+	 * and keeps it in the state. Threads that work it out at the same time find the same rule.
+	 */
+	private int match(DfaState state, int context, Scratch scratch) {
+		int rule = closure(state, context, scratch);
+		state.matches[context] = rule;
+		return rule;
+	}
+
+	/**
+	 * Returns the state the DFA goes to from the given one on the code point, adding it if it is new,
+	 * or null if there is no room for it. The state must not match in the context.
+	 *
+	 * The successor is worked out without the lock, which is only held to find or add the state
+	 * in the map, so that all threads get the same one. A successor is published with a plain write:
+	 * the fields of a state are final, so a thread that reads the reference sees the whole state,
+	 * and one that misses it works it out again.
+	 */
+	private DfaState step(DfaState state, int context, int cp, int charClass, Scratch scratch) {
+		closure(state, context, scratch);
+		ThreadList list = scratch.current;
+		int[] kernel = new int[list.count];
+		int size = 0;
+		for (int i = 0; i < list.count; i++) {
+			int pc = list.dense[i];
+			if (op[pc] == CHAR && contains(x[pc], cp))
+				kernel[size++] = pc + 1;
+		}
+		Kernel key = new Kernel(Arrays.copyOf(kernel, size));
+		DfaState next;
+		dfaLock.lock();
+		try {
+			next = dfaStates.get(key);
+			if (next == null) {
+				if (dfaStates.size() == MAX_DFA_STATES)
+					return null;
+				next = new DfaState(key.pcs, assertionKinds + 1, classCount);
+				dfaStates.put(key, next);
+			}
+		} finally {
+			dfaLock.unlock();
+		}
+		state.next[context * classCount + charClass] = next;
+		return next;
+	}
+
+	/**
+	 * Adds the NFA states of the DFA state, and those reachable from them and from the start
+	 * without consuming a code point, to the current list of the scratch, in the order
+	 * the NFA simulation adds them. Returns the rule of a reached MATCH instruction, or -1.
+	 */
+	private int closure(DfaState state, int context, Scratch scratch) {
+		scratch.ensure(op.length);
+		ThreadList list = scratch.current;
+		list.clear();
+		for (int pc : state.kernel) {
+			int rule = addThread(list, pc, context, scratch.stack);
+			if (rule != -1)
+				return rule;
+		}
+		return addThread(list, start, context, scratch.stack);
+	}
+
+	/**
+	 * Simulates the NFA on the text.
+	 *
+	 * @param text
+	 * @param scratch
+	 * @return
+	 */
+	private int findNfa(CharSequence text, Scratch scratch) {
+		int n = text.length();
+		scratch.ensure(op.length);
+		ThreadList current = scratch.current;
+		ThreadList next = scratch.next;
+		int[] stack = scratch.stack;
+		current.clear();
+
+		int pos = 0;
+		int context = context(text, pos);
+		while (true) {
+			// Unanchored search: a new thread starts at every position.
+			int rule = addThread(current, start, context, stack);
+			if (rule != -1)
+				return rule;
+			if (pos >= n)
+				return -1;
+
+			int cp = Character.codePointAt(text, pos);
+			int nextPos = pos + Character.charCount(cp);
+			context = context(text, nextPos);
+			next.clear();
+			for (int i = 0; i < current.count; i++) {
+				int pc = current.dense[i];
+				if (op[pc] == CHAR && contains(x[pc], cp)) {
+					rule = addThread(next, pc + 1, context, stack);
+					if (rule != -1)
+						return rule;
+				}
+			}
+			ThreadList swap = current;
+			current = next;
+			next = swap;
+			pos = nextPos;
+		}
+	}
+
+	/**
+	 * Adds the thread at pc, and every thread reachable from it without consuming
+	 * a character where the assertions of the context hold, to the list.
+	 * Returns the rule of a reached MATCH instruction, or -1.
+	 */
+	private int addThread(ThreadList list, int pc, int context, int[] stack) {
+		int top = 0;
+		stack[top++] = pc;
+		while (top > 0) {
+			pc = stack[--top];
+			if (list.contains(pc))
+				continue;
+			list.add(pc);
+			switch (op[pc]) {
+			case SPLIT:
+				// Push y first so x is followed first.
+				stack[top++] = y[pc];
+				stack[top++] = x[pc];
+				break;
+			case JMP:
+				stack[top++] = x[pc];
+				break;
+			case ASSERT:
+				if ((context & (1 << x[pc])) != 0)
+					stack[top++] = pc + 1;
+				break;
+			case MATCH:
+				return x[pc];
+			default:
+				break;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the assertion kinds the program uses that hold at the position, as a mask of 1 << kind.
+	 */
+	private int context(CharSequence text, int pos) {
+		int context = 0;
+		for (int kinds = assertionKinds; kinds != 0; kinds &= kinds - 1) {
+			int kind = Integer.numberOfTrailingZeros(kinds);
+			if (holds(kind, text, pos))
+				context |= 1 << kind;
+		}
+		return context;
+	}
+
+	/**
+	 * Returns the interval of code points of the same sets the code point is in.
+	 */
+	private int interval(int cp) {
+		int i = Arrays.binarySearch(intervalStarts, cp);
+		return i >= 0 ? i : -i - 2;
+	}
+
+	private boolean contains(int set, int cp) {
+		if (cp < 64)
+			return (asciiLow[set] & (1L << cp)) != 0;
+		if (cp < 128)
+			return (asciiHigh[set] & (1L << (cp - 64))) != 0;
+		return sets[set].contains(cp);
+	}
+
+	/**
+	 * Evaluates an assertion the way {@link java.util.regex.Pattern} does.
+	 */
+	private static boolean holds(int kind, CharSequence text, int pos) {
+		int n = text.length();
+		switch (kind) {
+		case RegexNode.Assertion.BEGIN_TEXT:
+			return pos == 0;
+		case RegexNode.Assertion.END_TEXT:
+			return pos == n;
+		case RegexNode.Assertion.BEGIN_LINE:
+			// Not at the end of the text, even after a line terminator.
+			if (pos == n)
+				return false;
+			if (pos > 0) {
+				char prev = text.charAt(pos - 1);
+				if (!isLineTerminator(prev))
+					return false;
+				// \r\n is a single line terminator.
+				if (prev == '\r' && text.charAt(pos) == '\n')
+					return false;
+			}
+			return true;
+		case RegexNode.Assertion.END_LINE:
+			if (pos == n)
+				return true;
+			return isLineTerminator(text.charAt(pos)) && !isBetweenCrLf(text, pos);
+		case RegexNode.Assertion.END_TEXT_BEFORE_TERMINATOR:
+			if (pos == n)
+				return true;
+			if (pos == n - 2)
+				return text.charAt(pos) == '\r' && text.charAt(pos + 1) == '\n';
+			if (pos == n - 1)
+				return isLineTerminator(text.charAt(pos)) && !isBetweenCrLf(text, pos);
+			return false;
+		default:
+			throw new IllegalStateException("assertion " + kind);
+		}
+	}
+
+	private static boolean isBetweenCrLf(CharSequence text, int pos) {
+		return text.charAt(pos) == '\n' && pos > 0 && text.charAt(pos - 1) == '\r';
+	}
+
+	private static boolean isLineTerminator(char c) {
+		return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+	}
+
+	/**
+	 * A state of the lazy DFA: the NFA states it stands for, before following the instructions
+	 * that do not consume a code point. The tables are indexed by the context, the assertions
+	 * that hold, and for the successors by the class of the code point. They are filled in and
+	 * read without a lock: every thread that fills an entry in writes the same value.
+	 */
+	private static final class DfaState {
+		final int[] kernel;
+		// The rule matched in each context, -1, or UNKNOWN until worked out.
+		final int[] matches;
+		// The successor for each context and class, or null until worked out.
+		final DfaState[] next;
+
+		DfaState(int[] kernel, int contexts, int classes) {
+			this.kernel = kernel;
+			this.matches = new int[contexts];
+			Arrays.fill(matches, UNKNOWN);
+			this.next = new DfaState[contexts * classes];
+		}
+	}
+
+	/**
+	 * The NFA states of a DFA state, as a key of the states.
+	 */
+	private static final class Kernel {
+		final int[] pcs;
+		private final int hash;
+
+		Kernel(int[] pcs) {
+			this.pcs = pcs;
+			this.hash = Arrays.hashCode(pcs);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Kernel && Arrays.equals(pcs, ((Kernel) o).pcs);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+
+	/**
+	 * The thread lists and stack of a search, kept from one search to the next.
+	 * A scratch can be used with any matcher, but by one thread at a time.
+	 */
+	static final class Scratch {
+		private ThreadList current = new ThreadList(0);
+		private ThreadList next = new ThreadList(0);
+		private int[] stack = new int[1];
+
+		/**
+		 * Makes room for a program of the given size.
+		 *
+		 * @param size
+		 */
+		void ensure(int size) {
+			if (current.dense.length >= size)
+				return;
+			current = new ThreadList(size);
+			next = new ThreadList(size);
+			// Each instruction is pushed by at most two others, plus the initial push.
+			stack = new int[2 * size + 1];
+		}
+	}
+
+	/**
+	 * Set of NFA states with constant time add, lookup and clear (Briggs and Torczon).
+	 */
+	private static final class ThreadList {
+		final int[] dense;
+		final int[] sparse;
+		int count;
+
+		ThreadList(int size) {
+			dense = new int[size];
+			sparse = new int[size];
+		}
+
+		boolean contains(int pc) {
+			int i = sparse[pc];
+			return i < count && dense[i] == pc;
+		}
+
+		void add(int pc) {
+			sparse[pc] = count;
+			dense[count++] = pc;
+		}
+
+		void clear() {
+			count = 0;
+		}
+	}
+
+	/**
+	 * Emits the instructions for a {@link RegexNode} tree.
+	 */
+	private static final class Compiler {
+		int[] op = new int[64];
+		int[] x = new int[64];
+		int[] y = new int[64];
+		int size;
+		final List<RegexNode.CharSet> sets = new ArrayList<RegexNode.CharSet>();
+		// Repeated nodes share their sets.
+		final Map<RegexNode.CharSet, Integer> setIndexes = new IdentityHashMap<RegexNode.CharSet, Integer>();
+
+		int emit(int opcode, int a, int b) {
+			if (size == MAX_PROGRAM_SIZE)
+				throw new RegexParser.UnsupportedRegexException("program larger than " + MAX_PROGRAM_SIZE);
+			if (size == op.length) {
+				op = Arrays.copyOf(op, size * 2);
+				x = Arrays.copyOf(x, size * 2);
+				y = Arrays.copyOf(y, size * 2);
+			}
+			op[size] = opcode;
+			x[size] = a;
+			y[size] = b;
+			return size++;
+		}
+
+		void compile(RegexNode node) {
+			if (node instanceof RegexNode.CharSet) {
+				Integer set = setIndexes.get(node);
+				if (set == null) {
+					set = sets.size();
+					sets.add((RegexNode.CharSet) node);
+					setIndexes.put((RegexNode.CharSet) node, set);
+				}
+				emit(CHAR, set, 0);
+			} else if (node instanceof RegexNode.Assertion) {
+				emit(ASSERT, ((RegexNode.Assertion) node).kind, 0);
+			} else if (node instanceof RegexNode.Concat) {
+				for (RegexNode child : ((RegexNode.Concat) node).nodes)
+					compile(child);
+			} else if (node instanceof RegexNode.Alternate) {
+				List<RegexNode> nodes = ((RegexNode.Alternate) node).nodes;
+				int[] jumps = new int[nodes.size() - 1];
+				for (int i = 0; i < nodes.size(); i++) {
+					if (i < nodes.size() - 1) {
+						int split = emit(SPLIT, 0, 0);
+						x[split] = split + 1;
+						compile(nodes.get(i));
+						jumps[i] = emit(JMP, 0, 0);
+						y[split] = size;
+					} else {
+						compile(nodes.get(i));
+					}
+				}
+				for (int jump : jumps)
+					x[jump] = size;
+			} else if (node instanceof RegexNode.Repeat) {
+				RegexNode.Repeat repeat = (RegexNode.Repeat) node;
+				for (int i = 0; i < repeat.min; i++)
+					compile(repeat.node);
+				if (repeat.max == RegexNode.Repeat.UNBOUNDED) {
+					int split = emit(SPLIT, 0, 0);
+					x[split] = split + 1;
+					compile(repeat.node);
+					emit(JMP, split, 0);
+					y[split] = size;
+				} else {
+					int optional = repeat.max - repeat.min;
+					int[] splits = new int[optional];
+					for (int i = 0; i < optional; i++) {
+						splits[i] = emit(SPLIT, 0, 0);
+						x[splits[i]] = splits[i] + 1;
+						compile(repeat.node);
+					}
+					for (int split : splits)
+						y[split] = size;
+				}
+			} else {
+				throw new IllegalStateException(String.valueOf(node));
+			}
+		}
+	}
+}
@@ -0,0 +1,367 @@
+package com.edlio.emailreplyparser;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Line boundaries of an email text, found in a single forward pass.
+ *
+ * Line i spans [start(i), end(i)) of the text. Trailing whitespace is already
+ * excluded from the end, and "\r\n", "\n" and "\r" are all accepted as line breaks.
+ * Like {@link String#split(String)}, empty lines at the end of the text are dropped.
+ *
+ * Each line also gets a class, from its first characters, as it is added: blank, quoted with
+ * the depth of the quote, a signature, a line starting with "Sent from my ", or plain (none of these bits).
+ */
+class Lines {
+	// Bits of the class of a line.
+	static final int QUOTE_DEPTH = 0x1F;
+	static final int SENT_FROM = 0x20;
+	static final int SIGNATURE = 0x40;
+	static final int BLANK = 0x80;
+	private static final String SENT_FROM_PREFIX = "Sent from my ";
+
+	private CharSequence text;
+	private int[] starts;
+	private int[] ends;
+	private byte[] classes;
+	private int count;
+
+	/**
+	 * Creates an empty list of lines over the text, to be filled with {@link #add(int, int)}.
+	 *
+	 * @param text
+	 * @param capacity
+	 */
+	Lines(CharSequence text, int capacity) {
+		this.text = text;
+		this.starts = new int[capacity];
+		this.ends = new int[capacity];
+		this.classes = new byte[capacity];
+	}
+
+	/**
+	 * Scans the given text for line boundaries.
+	 *
+	 * @param text
+	 * @return
+	 */
+	static Lines scan(CharSequence text) {
+		return scan(text, null);
+	}
+
+	/**
+	 * Scans the given text for line boundaries, into the arrays of lines from a previous scan
+	 * if it is not null. The lines of the previous scan are then lost.
+	 *
+	 * @param text
+	 * @param reuse
+	 * @return
+	 */
+	static Lines scan(CharSequence text, Lines reuse) {
+		int length = text.length();
+		Lines lines;
+		if (reuse != null) {
+			lines = reuse;
+			lines.reset(text);
+		} else {
+			lines = new Lines(text, Math.max(16, length / 32));
+		}
+
+		boolean hasLineBreak = false;
+		// Raw end of the last line that was not empty, used to drop empty trailing lines.
+		int keep = 0;
+		int start = 0;
+		LineBreaks breaks = new LineBreaks(text);
+		for (int i = breaks.next(0); i != -1; i = breaks.next(i + 1)) {
+			char c = text.charAt(i);
+			hasLineBreak = true;
+			lines.add(start, i);
+			if (i > start)
+				keep = lines.count;
+
+			if (c == '\r' && i + 1 < length && text.charAt(i + 1) == '\n')
+				i++;
+			start = i + 1;
+		}
+
+		if (!hasLineBreak) {
+			lines.add(0, length);
+		} else {
+			if (length > start) {
+				lines.add(start, length);
+				keep = lines.count;
+			}
+			lines.count = keep;
+		}
+		return lines;
+	}
+
+	/**
+	 * Empties the list, and sets the text of the lines to add next. The arrays are kept.
+	 *
+	 * @param text
+	 */
+	void reset(CharSequence text) {
+		this.text = text;
+		count = 0;
+	}
+
+	/**
+	 * Finds the line breaks of a text in order, with the fastest search the text allows.
+	 * A String is searched with {@link String#indexOf(int, int)}, which the JVM compiles to
+	 * vector instructions, once for "\n" and once for "\r", remembering the next of each.
+	 * UTF-8 text is searched in its bytes, 8 at a time.
+	 */
+	private static final class LineBreaks {
+		private final CharSequence text;
+		private final String string;
+		// Next "\n" and "\r" found, -1 if there is none left, or -2 before the first search.
+		private int lf = -2;
+		private int cr = -2;
+
+		LineBreaks(CharSequence text) {
+			this.text = text;
+			this.string = text instanceof String ? (String) text : null;
+		}
+
+		/**
+		 * Returns the index of the next "\n" or "\r" from the given index, or -1 if there is none.
+		 * The index only goes forward from one call to the next.
+		 *
+		 * @param from
+		 * @return
+		 */
+		int next(int from) {
+			if (string != null) {
+				if (lf != -1 && lf < from)
+					lf = string.indexOf('\n', from);
+				if (cr != -1 && cr < from)
+					cr = string.indexOf('\r', from);
+				if (lf == -1 || cr == -1)
+					return Math.max(lf, cr);
+				return Math.min(lf, cr);
+			}
+			if (text instanceof Utf8Text)
+				return ((Utf8Text) text).nextLineBreak(from);
+			int length = text.length();
+			for (int i = from; i < length; i++) {
+				char c = text.charAt(i);
+				if (c == '\n' || c == '\r')
+					return i;
+			}
+			return -1;
+		}
+	}
+
+	/**
+	 * Adds the line from start to rawEnd (exclusive), without its trailing whitespace.
+	 *
+	 * @param start
+	 * @param rawEnd
+	 */
+	void add(int start, int rawEnd) {
+		if (count == starts.length) {
+			starts = Arrays.copyOf(starts, count * 2);
+			ends = Arrays.copyOf(ends, count * 2);
+			classes = Arrays.copyOf(classes, count * 2);
+		}
+		int end = stripEnd(text, start, rawEnd);
+		starts[count] = start;
+		ends[count] = end;
+		classes[count] = (byte) classOf(text, start, end);
+		count++;
+	}
+
+	/**
+	 * Returns the class of the line from start to end, without trailing whitespace.
+	 * A quoted line starts with ">", the depth is the number of them, up to QUOTE_DEPTH.
+	 *
+	 * @param text
+	 * @param start
+	 * @param end
+	 * @return
+	 */
+	private static int classOf(CharSequence text, int start, int end) {
+		if (end == start)
+			return BLANK;
+		char c = text.charAt(start);
+		if (c == '>') {
+			int depth = 1;
+			while (depth < QUOTE_DEPTH && start + depth < end && text.charAt(start + depth) == '>')
+				depth++;
+			return depth;
+		}
+		return signatureClass(text, start, end);
+	}
+
+	/**
+	 * Tells from its first characters whether the line from start to end, which is not blank, matches
+	 * {@link EmailParser#SIG_PATTERN}: SIGNATURE if it does, SENT_FROM if it starts with "Sent from my "
+	 * and only {@link EmailParser#SENT_FROM_PATTERN} can tell, 0 if it does not.
+	 *
+	 * @param text
+	 * @param start
+	 * @param end
+	 * @return
+	 */
+	static int signatureClass(CharSequence text, int start, int end) {
+		char c = text.charAt(start);
+		char next = start + 1 < end ? text.charAt(start + 1) : 0;
+		switch (c) {
+		case '\u2013':
+		case '\u2014':
+			return SIGNATURE;
+		case '-':
+			// "-\w" and "--".
+			return next == '-' || isWordChar(next) ? SIGNATURE : 0;
+		case '_':
+			return next == '_' ? SIGNATURE : 0;
+		case ' ':
+		case '\t':
+		case '\u000B':
+		case '\f':
+			// "\s?__" and "\s?--", where \s is one of " \t\n\x0B\f\r" and a line holds no "\n" or "\r".
+			return (next == '_' || next == '-') && start + 2 < end && text.charAt(start + 2) == next ? SIGNATURE : 0;
+		case 'S':
+			return startsWith(text, start, end, SENT_FROM_PREFIX) ? SENT_FROM : 0;
+		default:
+			return 0;
+		}
+	}
+
+	private static boolean isWordChar(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+	}
+
+	private static boolean startsWith(CharSequence text, int start, int end, String prefix) {
+		if (end - start < prefix.length())
+			return false;
+		for (int i = 0; i < prefix.length(); i++) {
+			if (text.charAt(start + i) != prefix.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	private static int stripEnd(CharSequence text, int start, int end) {
+		while (end > start && Character.isWhitespace(text.charAt(end - 1)))
+			end--;
+		return end;
+	}
+
+	CharSequence text() {
+		return text;
+	}
+
+	int count() {
+		return count;
+	}
+
+	int start(int line) {
+		return starts[line];
+	}
+
+	int end(int line) {
+		return ends[line];
+	}
+
+	int length(int line) {
+		return ends[line] - starts[line];
+	}
+
+	boolean isEmpty(int line) {
+		return ends[line] == starts[line];
+	}
+
+	/**
+	 * Returns the class of a line, made of the bits QUOTE_DEPTH, SENT_FROM, SIGNATURE and BLANK.
+	 *
+	 * @param line
+	 * @return
+	 */
+	int lineClass(int line) {
+		return classes[line] & 0xFF;
+	}
+
+	/**
+	 * Returns the number of ">" the line starts with, up to QUOTE_DEPTH.
+	 *
+	 * @param line
+	 * @return
+	 */
+	int quoteDepth(int line) {
+		return classes[line] & QUOTE_DEPTH;
+	}
+
+	/**
+	 * Returns the text of the given line.
+	 *
+	 * @param line
+	 * @return
+	 */
+	CharSequence line(int line) {
+		return text.subSequence(starts[line], ends[line]);
+	}
+
+	/**
+	 * Appends the lines from first to last (inclusive), joined by "\n".
+	 *
+	 * @param sb
+	 * @param first
+	 * @param last
+	 * @return
+	 */
+	StringBuilder append(StringBuilder sb, int first, int last) {
+		for (int i = first; i <= last; i++) {
+			if (i > first)
+				sb.append('\n');
+			sb.append(text, starts[i], ends[i]);
+		}
+		return sb;
+	}
+
+	/**
+	 * Returns the text from start to end with every line stripped of trailing whitespace
+	 * and the line breaks replaced by "\n". For a range from the start of a line to the end
+	 * of a later one, this is what {@link #append(StringBuilder, int, int)} gives for these lines.
+	 *
+	 * @param text
+	 * @param start
+	 * @param end
+	 * @return
+	 */
+	static String join(CharSequence text, int start, int end) {
+		StringBuilder sb = new StringBuilder(end - start);
+		try {
+			join(text, start, end, sb);
+		} catch (IOException e) {
+			// StringBuilder does not throw.
+			throw new IllegalStateException(e);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Writes what {@link #join(CharSequence, int, int)} returns to out, without building the string.
+	 *
+	 * @param text
+	 * @param start
+	 * @param end
+	 * @param out
+	 * @throws IOException
+	 */
+	static void join(CharSequence text, int start, int end, Appendable out) throws IOException {
+		int lineStart = start;
+		for (int i = start; i < end; i++) {
+			char c = text.charAt(i);
+			if (c != '\n' && c != '\r')
+				continue;
+			out.append(text, lineStart, stripEnd(text, lineStart, i)).append('\n');
+			if (c == '\r' && i + 1 < end && text.charAt(i + 1) == '\n')
+				i++;
+			lineStart = i + 1;
+		}
+		out.append(text, lineStart, stripEnd(text, lineStart, end));
+	}
+}
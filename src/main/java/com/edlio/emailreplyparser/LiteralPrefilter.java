@@ -0,0 +1,296 @@
+package com.edlio.emailreplyparser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Aho-Corasick automaton over literals that every match of a set of rules must contain.
+ *
+ * For each rule, {@link #requiredLiterals(RegexNode)} derives a set of strings such that
+ * any text matching the rule contains at least one of them (e.g. "wrote:" for
+ * "^(On\s(.{1,500})wrote:)"). If a text contains none of the literals of any rule,
+ * no rule can match it and the regular expressions do not need to run.
+ */
+class LiteralPrefilter {
+	// Limits on the literal sets we keep track of while walking a rule.
+	private static final int MAX_SET_SIZE = 16;
+	private static final int MAX_CLASS_SIZE = 4;
+
+	private static final int ASCII = 128;
+
+	// Transitions for ASCII characters, already following failure links: asciiNext[state * ASCII + c].
+	private final int[] asciiNext;
+	// Transitions for other characters, without failure links.
+	private final List<Map<Character, Integer>> next;
+	private final int[] fail;
+	private final boolean[] accept;
+
+	private LiteralPrefilter(Set<String> literals) {
+		List<Map<Character, Integer>> next = new ArrayList<Map<Character, Integer>>();
+		List<Boolean> accept = new ArrayList<Boolean>();
+		next.add(new HashMap<Character, Integer>());
+		accept.add(false);
+		for (String literal : literals) {
+			int state = 0;
+			for (int i = 0; i < literal.length(); i++) {
+				Integer to = next.get(state).get(literal.charAt(i));
+				if (to == null) {
+					to = next.size();
+					next.add(new HashMap<Character, Integer>());
+					accept.add(false);
+					next.get(state).put(literal.charAt(i), to);
+				}
+				state = to;
+			}
+			accept.set(state, true);
+		}
+
+		int states = next.size();
+		this.next = next;
+		this.fail = new int[states];
+		this.accept = new boolean[states];
+		this.asciiNext = new int[states * ASCII];
+		for (int i = 0; i < states; i++)
+			this.accept[i] = accept.get(i);
+
+		// Breadth-first, so the failure state of a state is always complete before it is used.
+		LinkedList<Integer> queue = new LinkedList<Integer>();
+		for (Map.Entry<Character, Integer> e : next.get(0).entrySet())
+			queue.add(e.getValue());
+		for (char c = 0; c < ASCII; c++) {
+			Integer to = next.get(0).get(c);
+			asciiNext[c] = to == null ? 0 : to;
+		}
+		while (!queue.isEmpty()) {
+			int state = queue.removeFirst();
+			this.accept[state] |= this.accept[fail[state]];
+			for (Map.Entry<Character, Integer> e : next.get(state).entrySet()) {
+				int to = e.getValue();
+				fail[to] = state == 0 ? 0 : step(fail[state], e.getKey());
+				queue.add(to);
+			}
+			for (char c = 0; c < ASCII; c++) {
+				Integer to = next.get(state).get(c);
+				asciiNext[state * ASCII + c] = to != null ? to : asciiNext[fail[state] * ASCII + c];
+			}
+		}
+	}
+
+	/**
+	 * Builds a prefilter for the given rules, or returns null if some rule
+	 * has no usable literals (so every text could match).
+	 *
+	 * @param rules
+	 * @return
+	 */
+	static LiteralPrefilter forRules(List<RegexNode> rules) {
+		Set<String> literals = new LinkedHashSet<String>();
+		for (RegexNode rule : rules) {
+			Set<String> required = requiredLiterals(rule);
+			if (required == null)
+				return null;
+			literals.addAll(required);
+		}
+		return new LiteralPrefilter(literals);
+	}
+
+	/**
+	 * Returns the initial state.
+	 *
+	 * @return
+	 */
+	int start() {
+		return 0;
+	}
+
+	/**
+	 * Returns the state after reading c in the given state.
+	 *
+	 * @param state
+	 * @param c
+	 * @return
+	 */
+	int step(int state, char c) {
+		if (c < ASCII)
+			return asciiNext[state * ASCII + c];
+		while (true) {
+			Integer to = next.get(state).get(c);
+			if (to != null)
+				return to;
+			if (state == 0)
+				return 0;
+			state = fail[state];
+		}
+	}
+
+	/**
+	 * Tells if a literal ends at the given state.
+	 *
+	 * @param state
+	 * @return
+	 */
+	boolean isMatch(int state) {
+		return accept[state];
+	}
+
+	/**
+	 * Checks if the text contains one of the literals.
+	 *
+	 * @param text
+	 * @return
+	 */
+	boolean mayMatch(CharSequence text) {
+		int state = 0;
+		for (int i = 0; i < text.length(); i++) {
+			state = step(state, text.charAt(i));
+			if (accept[state])
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns a set of strings such that every match of the node contains at least one of them,
+	 * or null if there is no such (non-empty) set.
+	 *
+	 * @param node
+	 * @return
+	 */
+	static Set<String> requiredLiterals(RegexNode node) {
+		Info info = info(node);
+		Set<String> required = info.exact != null ? info.exact : info.required;
+		if (required == null || required.contains(""))
+			return null;
+		return required;
+	}
+
+	/**
+	 * What we know about the strings matched by a node.
+	 */
+	private static class Info {
+		/** All strings the node can match, if there are few of them; otherwise null. */
+		Set<String> exact;
+		/** A set of strings one of which is contained in every match; null if unknown. */
+		Set<String> required;
+	}
+
+	private static Info info(RegexNode node) {
+		Info info = new Info();
+		if (node instanceof RegexNode.CharSet) {
+			RegexNode.CharSet set = (RegexNode.CharSet) node;
+			if (set.size() <= MAX_CLASS_SIZE) {
+				info.exact = new LinkedHashSet<String>();
+				for (int i = 0; i < set.ranges.length; i += 2) {
+					for (int c = set.ranges[i]; c <= set.ranges[i + 1]; c++)
+						info.exact.add(new String(Character.toChars(c)));
+				}
+			}
+		} else if (node instanceof RegexNode.Assertion) {
+			info.exact = new LinkedHashSet<String>(Arrays.asList(""));
+		} else if (node instanceof RegexNode.Concat) {
+			// Run of adjacent children whose strings are all known.
+			Set<String> run = new LinkedHashSet<String>(Arrays.asList(""));
+			boolean exact = true;
+			for (RegexNode child : ((RegexNode.Concat) node).nodes) {
+				Info c = info(child);
+				if (c.exact != null) {
+					Set<String> product = product(run, c.exact);
+					if (product != null) {
+						run = product;
+					} else {
+						info.required = better(info.required, run);
+						run = c.exact;
+						exact = false;
+					}
+				} else {
+					info.required = better(better(info.required, run), c.required);
+					run = new LinkedHashSet<String>(Arrays.asList(""));
+					exact = false;
+				}
+			}
+			if (exact)
+				info.exact = run;
+			else
+				info.required = better(info.required, run);
+		} else if (node instanceof RegexNode.Alternate) {
+			info.exact = new LinkedHashSet<String>();
+			info.required = new LinkedHashSet<String>();
+			for (RegexNode child : ((RegexNode.Alternate) node).nodes) {
+				Info c = info(child);
+				if (info.exact != null && c.exact != null && info.exact.size() + c.exact.size() <= MAX_SET_SIZE)
+					info.exact.addAll(c.exact);
+				else
+					info.exact = null;
+
+				Set<String> required = asRequired(c);
+				if (info.required != null && required != null)
+					info.required.addAll(required);
+				else
+					info.required = null;
+			}
+			if (info.exact != null)
+				info.required = null;
+		} else if (node instanceof RegexNode.Repeat) {
+			RegexNode.Repeat repeat = (RegexNode.Repeat) node;
+			Info c = info(repeat.node);
+			if (repeat.min == 1 && repeat.max == 1) {
+				return c;
+			} else if (repeat.min == 0 && repeat.max == 1 && c.exact != null && c.exact.size() < MAX_SET_SIZE) {
+				info.exact = new LinkedHashSet<String>(c.exact);
+				info.exact.add("");
+			} else if (repeat.min > 0) {
+				info.required = asRequired(c);
+			}
+		}
+		return info;
+	}
+
+	private static Set<String> asRequired(Info info) {
+		Set<String> set = info.exact != null ? info.exact : info.required;
+		return set == null || set.contains("") ? null : set;
+	}
+
+	private static Set<String> product(Set<String> left, Set<String> right) {
+		if (left.size() * right.size() > MAX_SET_SIZE)
+			return null;
+		Set<String> product = new LinkedHashSet<String>();
+		for (String l : left) {
+			for (String r : right)
+				product.add(l + r);
+		}
+		return product;
+	}
+
+	/**
+	 * Picks the more selective of two required sets: the one whose shortest literal is longest,
+	 * then the smaller one, then the first one.
+	 *
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	private static Set<String> better(Set<String> a, Set<String> b) {
+		if (b == null || b.contains(""))
+			return a;
+		if (a == null)
+			return b;
+		int minA = minLength(a);
+		int minB = minLength(b);
+		if (minA != minB)
+			return minA > minB ? a : b;
+		return b.size() < a.size() ? b : a;
+	}
+
+	private static int minLength(Set<String> set) {
+		int min = Integer.MAX_VALUE;
+		for (String s : set)
+			min = Math.min(min, s.length());
+		return min;
+	}
+}
@@ -0,0 +1,131 @@
+package com.edlio.emailreplyparser;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The rules of one language: the quote headers and separators that start quoted history, and
+ * the signatures mobile clients add, as regular expressions. A parser built with
+ * {@link EmailParser.Builder#locales(String...)} compiles them with its own rules.
+ *
+ * A pack is read from the resource <code>locales/&lt;language&gt;.txt</code> next to this class
+ * the first time a parser asks for it, and kept. The file has a <code>[quote-headers]</code>,
+ * a <code>[separators]</code> and a <code>[signatures]</code> section, with one regular
+ * expression per line, as {@link java.util.regex.Pattern} reads it, without the escaping of
+ * Java strings. Blank lines and lines starting with "#" are skipped.
+ */
+final class LocalePack {
+	private static final String QUOTE_HEADERS = "[quote-headers]";
+	private static final String SEPARATORS = "[separators]";
+	private static final String SIGNATURES = "[signatures]";
+
+	private static final ConcurrentMap<String, LocalePack> LOADED = new ConcurrentHashMap<String, LocalePack>();
+
+	private final String language;
+	private final List<String> quoteHeaders;
+	private final List<String> separators;
+	private final List<String> signatures;
+
+	private LocalePack(String language, List<String> quoteHeaders, List<String> separators, List<String> signatures) {
+		this.language = language;
+		this.quoteHeaders = Collections.unmodifiableList(quoteHeaders);
+		this.separators = Collections.unmodifiableList(separators);
+		this.signatures = Collections.unmodifiableList(signatures);
+	}
+
+	/**
+	 * Returns the pack of the given language, such as "de", reading it if no parser asked for it before.
+	 *
+	 * @param language
+	 * @return
+	 * @throws IllegalArgumentException if there is no pack for the language
+	 */
+	static LocalePack forLanguage(String language) {
+		LocalePack pack = LOADED.get(language);
+		if (pack == null) {
+			pack = load(language);
+			LocalePack loaded = LOADED.putIfAbsent(language, pack);
+			if (loaded != null)
+				pack = loaded;
+		}
+		return pack;
+	}
+
+	private static LocalePack load(String language) {
+		if (!language.matches("[a-z]{2,3}"))
+			throw new IllegalArgumentException("Not a language code: " + language);
+		InputStream in = LocalePack.class.getResourceAsStream("locales/" + language + ".txt");
+		if (in == null)
+			throw new IllegalArgumentException("No locale pack for language: " + language);
+		List<String> quoteHeaders = new ArrayList<String>();
+		List<String> separators = new ArrayList<String>();
+		List<String> signatures = new ArrayList<String>();
+		List<String> section = null;
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					if (line.trim().isEmpty() || line.startsWith("#"))
+						continue;
+					if (line.equals(QUOTE_HEADERS))
+						section = quoteHeaders;
+					else if (line.equals(SEPARATORS))
+						section = separators;
+					else if (line.equals(SIGNATURES))
+						section = signatures;
+					else if (section == null)
+						throw new IllegalStateException("Rule outside of a section in locale pack " + language + ": " + line);
+					else
+						section.add(line);
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+			// A resource of the library does not fail to read.
+			throw new IllegalStateException(e);
+		}
+		return new LocalePack(language, quoteHeaders, separators, signatures);
+	}
+
+	String getLanguage() {
+		return language;
+	}
+
+	/**
+	 * Returns the rules of paragraphs that introduce quoted history, such as "On ... wrote:".
+	 *
+	 * @return
+	 */
+	List<String> getQuoteHeaders() {
+		return quoteHeaders;
+	}
+
+	/**
+	 * Returns the rules of the lines clients put above quoted history, such as "-----Original Message-----".
+	 * The parser matches them like quote headers.
+	 *
+	 * @return
+	 */
+	List<String> getSeparators() {
+		return separators;
+	}
+
+	/**
+	 * Returns the rules of the lines that start a signature, such as "Sent from my iPhone".
+	 *
+	 * @return
+	 */
+	List<String> getSignatures() {
+		return signatures;
+	}
+}
@@ -0,0 +1,163 @@
+package com.edlio.emailreplyparser;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An .eml or mbox file, memory-mapped, whose message bodies can be parsed without reading
+ * the file onto the heap.
+ *
+ * The bodies are read as UTF-8 (so ASCII too), straight from the mapped bytes: only the lines
+ * the parser matches and the content of the fragments asked for are decoded onto the heap.
+ * They are the bytes as stored in the file, so they are only the text of the message for
+ * plain text bodies without a quoted-printable or base64 transfer encoding. In an mbox file,
+ * body lines starting with "From " are expected to be escaped as ">From ", and are left so.
+ *
+ * The file must not change while its bodies, or the emails parsed from them, are in use.
+ */
+public class MailFile {
+	private final ByteBuffer bytes;
+	// Where the body of each message starts and ends in the file.
+	private int[] starts = new int[16];
+	private int[] ends = new int[16];
+	private int count;
+
+	private MailFile(ByteBuffer bytes) {
+		this.bytes = bytes;
+		findBodies();
+	}
+
+	/**
+	 * Maps the file read-only. Files of 2GB or more are not supported.
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static MailFile map(File file) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = in.getChannel();
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE)
+				throw new IOException("File too large to map: " + file);
+			// The mapping stays valid after the channel is closed.
+			MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			return new MailFile(bytes);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Returns the body of every message, in the order of the file.
+	 * An mbox file, which starts with a "From " line, has one message per "From " line,
+	 * any other file is a single message.
+	 * Each body can be passed to {@link EmailParser#parse(CharSequence)}.
+	 * 
+	 * Only where the bodies are is kept: the text of a body is scanned 
+	 * each time it is taken from the list.
+	 *
+	 * @return an unmodifiable list
+	 */
+	public List<CharSequence> getBodies() {
+		return new AbstractList<CharSequence>() {
+			@Override
+			public CharSequence get(int index) {
+				if (index < 0 || index >= count)
+					throw new IndexOutOfBoundsException(String.valueOf(index));
+				return new Utf8Text(bytes, starts[index], ends[index]);
+			}
+
+			@Override
+			public int size() {
+				return count;
+			}
+		};
+	}
+
+	/**
+	 * Returns the whole file, headers included.
+	 *
+	 * @return
+	 */
+	public CharSequence getText() {
+		return new Utf8Text(bytes, 0, bytes.limit());
+	}
+
+	private void findBodies() {
+		int limit = bytes.limit();
+		if (!isFromLine(bytes, 0)) {
+			addBody(0, limit);
+			return;
+		}
+		int start = 0;
+		while (start < limit) {
+			int end = nextLine(bytes, start);
+			while (end < limit && !isFromLine(bytes, end))
+				end = nextLine(bytes, end);
+			// Skip the "From " line itself.
+			addBody(nextLine(bytes, start), end);
+			start = end;
+		}
+	}
+
+	/**
+	 * Adds the body of the message from start to end, after its headers,
+	 * which end at the first empty line. Without one, the body is empty.
+	 *
+	 * @param start
+	 * @param end
+	 */
+	private void addBody(int start, int end) {
+		int body = end;
+		for (int line = start; line < end; ) {
+			int next = nextLine(bytes, line);
+			byte b = bytes.get(line);
+			if (b == '\n' || b == '\r') {
+				body = next;
+				break;
+			}
+			line = next;
+		}
+		if (count == starts.length) {
+			starts = Arrays.copyOf(starts, count * 2);
+			ends = Arrays.copyOf(ends, count * 2);
+		}
+		starts[count] = body;
+		ends[count] = end;
+		count++;
+	}
+
+	private static boolean isFromLine(ByteBuffer bytes, int at) {
+		if (at + 5 > bytes.limit())
+			return false;
+		return bytes.get(at) == 'F' && bytes.get(at + 1) == 'r' && bytes.get(at + 2) == 'o'
+				&& bytes.get(at + 3) == 'm' && bytes.get(at + 4) == ' ';
+	}
+
+	/**
+	 * Returns where the line after the one starting at the given offset starts,
+	 * accepting "\r\n", "\n" and "\r" line breaks, or the end of the buffer.
+	 *
+	 * @param bytes
+	 * @param at
+	 * @return
+	 */
+	private static int nextLine(ByteBuffer bytes, int at) {
+		int limit = bytes.limit();
+		int i = Utf8Text.indexOfLineBreak(bytes, at, limit);
+		if (i == -1)
+			return limit;
+		if (bytes.get(i) == '\r' && i + 1 < limit && bytes.get(i + 1) == '\n')
+			return i + 2;
+		return i + 1;
+	}
+}
@@ -0,0 +1,393 @@
+package com.edlio.emailreplyparser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Part;
+import javax.mail.internet.ContentDisposition;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.MimeUtility;
+import javax.mail.internet.ParseException;
+
+/**
+ * The text part of a MIME message that holds the reply: the first text/plain or text/html part,
+ * in the order of the message, that is not an attachment. In a multipart/alternative the plain
+ * text comes first, so it is the one taken. Forwarded messages (message/rfc822) are not looked into.
+ *
+ * The text is a {@link Reader} that decodes the part as it is read, from its transfer encoding and
+ * its charset (UTF-8 when it has none, or one Java does not know).
+ *
+ * A raw message is read as a stream, once: the parts before the text part are skipped line by line,
+ * keeping no more of each line than it takes to tell a boundary, and nothing after the text part
+ * is read at all. An attachment costs the time it takes to skip it if it comes first, and nothing
+ * if it comes after the text.
+ */
+final class MimeText {
+	private static final int END = -1;
+	// Bytes kept of a header, unfolded, and of a line skipped beyond what a boundary takes.
+	private static final int MAX_HEADER_LINE = 1 << 16;
+	private static final int BOUNDARY_SLACK = 64;
+
+	private final Reader text;
+	private final boolean html;
+
+	private MimeText(Reader text, boolean html) {
+		this.text = text;
+		this.html = html;
+	}
+
+	Reader getText() {
+		return text;
+	}
+
+	boolean isHtml() {
+		return html;
+	}
+
+	/**
+	 * Returns the text part of a message, or null if it has none.
+	 *
+	 * @param part
+	 * @return
+	 * @throws MessagingException
+	 * @throws IOException
+	 */
+	static MimeText of(Part part) throws MessagingException, IOException {
+		if (part.isMimeType("multipart/*")) {
+			Multipart multipart = (Multipart) part.getContent();
+			for (int i = 0; i < multipart.getCount(); i++) {
+				MimeText text = of(multipart.getBodyPart(i));
+				if (text != null)
+					return text;
+			}
+			return null;
+		}
+		if (Part.ATTACHMENT.equalsIgnoreCase(part.getDisposition()))
+			return null;
+		boolean html = part.isMimeType("text/html");
+		if (!html && !part.isMimeType("text/plain"))
+			return null;
+		return new MimeText(new InputStreamReader(part.getInputStream(), charset(parseContentType(part.getContentType()))), html);
+	}
+
+	/**
+	 * Returns the text part of a raw RFC 822 message, or null if it has none. The stream is left
+	 * wherever the text part starts, and the text reads on from there.
+	 *
+	 * @param rfc822
+	 * @return
+	 * @throws IOException
+	 */
+	static MimeText of(InputStream rfc822) throws IOException {
+		return new RawMessage(rfc822).find();
+	}
+
+	private static ContentType parseContentType(String value) {
+		if (value != null) {
+			try {
+				return new ContentType(value);
+			} catch (ParseException e) {
+				// Read as the default, like a part without a Content-Type.
+			}
+		}
+		return new ContentType("text", "plain", null);
+	}
+
+	private static Charset charset(ContentType type) {
+		String charset = type.getParameter("charset");
+		if (charset != null) {
+			try {
+				return Charset.forName(MimeUtility.javaCharset(charset.trim()));
+			} catch (IllegalArgumentException e) {
+				// Unknown or malformed, fall back.
+			}
+		}
+		return StandardCharsets.UTF_8;
+	}
+
+	/**
+	 * A message read from a stream, part by part.
+	 */
+	private static final class RawMessage {
+		private final InputStream in;
+		private final byte[] buffer = new byte[8192];
+		private int pos;
+		private int limit;
+		// The line last read, as much of it as was kept, and the length of its line break.
+		private byte[] line = new byte[256];
+		private int lineLength;
+		private int lineBreak;
+		private boolean truncated;
+		// The boundaries of the multiparts the stream is in, the innermost last.
+		private final List<byte[]> boundaries = new ArrayList<byte[]>();
+		private int maxBoundary;
+		// The delimiter the last skipped part ended at: the boundary index times two, plus one
+		// for a close delimiter, or END.
+		private int delimiter = END;
+
+		RawMessage(InputStream in) {
+			this.in = in;
+		}
+
+		MimeText find() throws IOException {
+			return find(readHeaders());
+		}
+
+		/**
+		 * Returns the text part in the part whose headers were just read, or null and sets
+		 * the delimiter its body ends at.
+		 *
+		 * @param headers
+		 * @return
+		 * @throws IOException
+		 */
+		private MimeText find(String[] headers) throws IOException {
+			ContentType type = parseContentType(headers[0]);
+			String boundary = type.getParameter("boundary");
+			if (type.match("multipart/*") && boundary != null && !boundary.isEmpty()) {
+				int index = boundaries.size();
+				boundaries.add(("--" + boundary).getBytes(StandardCharsets.ISO_8859_1));
+				maxBoundary = Math.max(maxBoundary, boundary.length() + 2);
+				// The preamble.
+				int hit = skipToDelimiter();
+				while (hit == 2 * index) {
+					MimeText text = find(readHeaders());
+					if (text != null)
+						return text;
+					hit = delimiter;
+				}
+				boundaries.remove(index);
+				// The epilogue.
+				if (hit == 2 * index + 1)
+					hit = skipToDelimiter();
+				delimiter = hit;
+				return null;
+			}
+			boolean attachment = false;
+			if (headers[2] != null) {
+				try {
+					attachment = Part.ATTACHMENT.equalsIgnoreCase(new ContentDisposition(headers[2]).getDisposition());
+				} catch (ParseException e) {
+					attachment = headers[2].trim().toLowerCase().startsWith(Part.ATTACHMENT);
+				}
+			}
+			boolean html = type.match("text/html");
+			if (attachment || (!html && !type.match("text/plain"))) {
+				delimiter = skipToDelimiter();
+				return null;
+			}
+			InputStream body = new BodyStream();
+			if (headers[1] != null) {
+				try {
+					body = MimeUtility.decode(body, headers[1].trim());
+				} catch (MessagingException e) {
+					// An unknown transfer encoding, read the body as it is.
+				}
+			}
+			return new MimeText(new InputStreamReader(body, charset(type)), html);
+		}
+
+		/**
+		 * Reads the header lines of a part, up to the blank line, and returns the values of its
+		 * Content-Type, Content-Transfer-Encoding and Content-Disposition, or null for the ones it
+		 * does not have. Of a header folded over many lines, no more than MAX_HEADER_LINE bytes are kept.
+		 *
+		 * @return
+		 * @throws IOException
+		 */
+		private String[] readHeaders() throws IOException {
+			String[] values = new String[3];
+			StringBuilder header = new StringBuilder();
+			while (readLine(MAX_HEADER_LINE) && lineLength > 0) {
+				if ((line[0] == ' ' || line[0] == '\t') && header.length() > 0) {
+					int length = Math.min(lineLength, MAX_HEADER_LINE - header.length());
+					header.append(new String(line, 0, length, StandardCharsets.ISO_8859_1));
+					continue;
+				}
+				keep(header, values);
+				header.setLength(0);
+				header.append(new String(line, 0, lineLength, StandardCharsets.ISO_8859_1));
+			}
+			keep(header, values);
+			return values;
+		}
+
+		private static void keep(StringBuilder header, String[] values) {
+			int colon = header.indexOf(":");
+			if (colon == -1)
+				return;
+			String name = header.substring(0, colon).trim();
+			String value = header.substring(colon + 1).trim();
+			if (name.equalsIgnoreCase("Content-Type"))
+				values[0] = value;
+			else if (name.equalsIgnoreCase("Content-Transfer-Encoding"))
+				values[1] = value;
+			else if (name.equalsIgnoreCase("Content-Disposition"))
+				values[2] = value;
+		}
+
+		/**
+		 * Skips lines up to a delimiter of one of the multiparts the stream is in, and returns it.
+		 *
+		 * @return
+		 * @throws IOException
+		 */
+		private int skipToDelimiter() throws IOException {
+			while (readLine(maxBoundary + BOUNDARY_SLACK)) {
+				int hit = delimiter();
+				if (hit != END)
+					return hit;
+			}
+			return END;
+		}
+
+		/**
+		 * Returns the delimiter the line is, innermost multipart first, or END if it is none.
+		 *
+		 * @return
+		 */
+		private int delimiter() {
+			if (truncated || lineLength < 2 || line[0] != '-' || line[1] != '-')
+				return END;
+			for (int i = boundaries.size() - 1; i >= 0; i--) {
+				byte[] boundary = boundaries.get(i);
+				if (lineLength < boundary.length || !startsWith(boundary))
+					continue;
+				int rest = boundary.length;
+				boolean close = rest + 1 < lineLength && line[rest] == '-' && line[rest + 1] == '-';
+				if (close)
+					rest += 2;
+				while (rest < lineLength && (line[rest] == ' ' || line[rest] == '\t'))
+					rest++;
+				if (rest == lineLength)
+					return 2 * i + (close ? 1 : 0);
+			}
+			return END;
+		}
+
+		private boolean startsWith(byte[] prefix) {
+			for (int i = 0; i < prefix.length; i++) {
+				if (line[i] != prefix[i])
+					return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Reads the next line, keeping up to the given number of its bytes, without its line break.
+		 * Returns false at the end of the stream.
+		 *
+		 * @param keep
+		 * @return
+		 * @throws IOException
+		 */
+		private boolean readLine(int keep) throws IOException {
+			lineLength = 0;
+			lineBreak = 0;
+			truncated = false;
+			boolean any = false;
+			while (true) {
+				if (pos == limit && !fill())
+					return any;
+				any = true;
+				byte b = buffer[pos++];
+				if (b == '\n') {
+					lineBreak = 1;
+					if (!truncated && lineLength > 0 && line[lineLength - 1] == '\r') {
+						lineLength--;
+						lineBreak = 2;
+					}
+					return true;
+				}
+				if (lineLength == keep) {
+					truncated = true;
+					continue;
+				}
+				if (lineLength == line.length)
+					line = Arrays.copyOf(line, (int) Math.min(keep, line.length * 2L));
+				line[lineLength++] = b;
+			}
+		}
+
+		private boolean fill() throws IOException {
+			int read = in.read(buffer);
+			if (read <= 0) {
+				pos = 0;
+				limit = 0;
+				return false;
+			}
+			pos = 0;
+			limit = read;
+			return true;
+		}
+
+		/**
+		 * The body of the text part, up to the delimiter that ends it. The line break before the
+		 * delimiter is part of the delimiter.
+		 */
+		private final class BodyStream extends InputStream {
+			private final byte[] crlf = { '\r', '\n' };
+			private final byte[] one = new byte[1];
+			// The line break of the last line, given once the next line shows it is not a delimiter.
+			private int pendingBreak;
+			private int linePos;
+			private int breakPos;
+			private boolean ended;
+
+			BodyStream() {
+				// Nothing of a line is handed out before it is read.
+				lineLength = 0;
+				lineBreak = 0;
+			}
+
+			@Override
+			public int read() throws IOException {
+				return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (len == 0)
+					return 0;
+				while (true) {
+					if (breakPos < pendingBreak) {
+						int n = Math.min(len, pendingBreak - breakPos);
+						System.arraycopy(crlf, 2 - pendingBreak + breakPos, b, off, n);
+						breakPos += n;
+						return n;
+					}
+					if (linePos < lineLength) {
+						int n = Math.min(len, lineLength - linePos);
+						System.arraycopy(line, linePos, b, off, n);
+						linePos += n;
+						return n;
+					}
+					if (ended)
+						return -1;
+					int lastBreak = lineBreak;
+					if (!readLine(Integer.MAX_VALUE) || (!boundaries.isEmpty() && delimiter() != END)) {
+						ended = true;
+						lineLength = 0;
+						// The text has its own last line break when there is no delimiter after it.
+						pendingBreak = boundaries.isEmpty() ? lastBreak : 0;
+						breakPos = 0;
+						linePos = 0;
+						continue;
+					}
+					pendingBreak = lastBreak;
+					breakPos = 0;
+					linePos = 0;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,360 @@
+package com.edlio.emailreplyparser;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded cache of parse results, in front of the parsers it is given to with
+ * {@link EmailParser.Builder#cache(ParseCache)}, for bodies that are parsed over and over.
+ *
+ * A result is found by a 128-bit hash of the body and a fingerprint of the configuration of
+ * the parser, so one cache can serve several parsers. The body is compared as well, so a body
+ * never gets the result of another one. Only String bodies are cached, and truncated results,
+ * which depend on the time the parse had, never are. Every parse of a body returns the same
+ * {@link Email}, which holds on to the first String of that body.
+ *
+ * The cache is split into stripes, each with its own lock, held only to look up or add a result.
+ * Which result to drop is decided by frequency: each stripe counts how often the bodies it has seen
+ * were asked for, in a small sketch whose counts are halved now and then, and a new result only
+ * replaces the least recently used ones if its body was asked for more often. A burst of bodies
+ * seen once does not flush the ones asked for all the time.
+ */
+public final class ParseCache {
+	private static final int MAX_STRIPES = 16;
+	// Smallest share of the bound that is worth a stripe of its own.
+	private static final int MIN_STRIPE_ENTRIES = 8;
+	private static final long MIN_STRIPE_WEIGHT = 1 << 16;
+	// Chars per result assumed to size the sketches of a cache bounded by weight.
+	private static final int AVERAGE_WEIGHT = 1 << 10;
+
+	static final int EMAIL = 0;
+	static final int REPLY = 1;
+
+	private final Stripe[] stripes;
+	private final boolean byWeight;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	private ParseCache(long bound, boolean byWeight) {
+		if (bound < 1)
+			throw new IllegalArgumentException("Cache bound must be positive: " + bound);
+		this.byWeight = byWeight;
+		long minShare = byWeight ? MIN_STRIPE_WEIGHT : MIN_STRIPE_ENTRIES;
+		int count = 1;
+		while (count < MAX_STRIPES && bound / (count * 2) >= minShare)
+			count *= 2;
+		stripes = new Stripe[count];
+		long entries = byWeight ? Math.max(1, bound / AVERAGE_WEIGHT) : bound;
+		for (int i = 0; i < count; i++)
+			stripes[i] = new Stripe(bound / count + (i < bound % count ? 1 : 0), (int) Math.min(1 << 20, entries / count + 1));
+	}
+
+	/**
+	 * Creates a cache holding up to the given number of results.
+	 *
+	 * @param maxEntries
+	 * @return
+	 */
+	public static ParseCache maximumSize(long maxEntries) {
+		return new ParseCache(maxEntries, false);
+	}
+
+	/**
+	 * Creates a cache holding results for bodies of up to the given number of chars in all.
+	 * A body longer than its share of the cache is never cached.
+	 *
+	 * @param maxChars
+	 * @return
+	 */
+	public static ParseCache maximumWeight(long maxChars) {
+		return new ParseCache(maxChars, true);
+	}
+
+	/**
+	 * Returns how many parses found their result in the cache.
+	 *
+	 * @return
+	 */
+	public long getHitCount() {
+		return hits.sum();
+	}
+
+	/**
+	 * Returns how many parses did not find their result in the cache.
+	 *
+	 * @return
+	 */
+	public long getMissCount() {
+		return misses.sum();
+	}
+
+	/**
+	 * Returns how many results were dropped to make room for others.
+	 *
+	 * @return
+	 */
+	public long getEvictionCount() {
+		return evictions.sum();
+	}
+
+	/**
+	 * Returns the number of results held.
+	 *
+	 * @return
+	 */
+	public long size() {
+		long size = 0;
+		for (Stripe stripe : stripes) {
+			stripe.lock.lock();
+			try {
+				size += stripe.entries.size();
+			} finally {
+				stripe.lock.unlock();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Drops every result. The counts and frequencies are kept.
+	 */
+	public void clear() {
+		for (Stripe stripe : stripes) {
+			stripe.lock.lock();
+			try {
+				stripe.entries.clear();
+				stripe.weight = 0;
+			} finally {
+				stripe.lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Returns the key of the result of a body, for the given configuration and kind of result.
+	 *
+	 * @param body
+	 * @param fingerprint
+	 * @param kind EMAIL or REPLY
+	 * @return
+	 */
+	static Key key(String body, long fingerprint, int kind) {
+		// Two lanes over four chars at a time, mixed together at the end.
+		long h1 = fingerprint ^ 0x9E3779B97F4A7C15L;
+		long h2 = (fingerprint + kind) * 0xC2B2AE3D27D4EB4FL + body.length();
+		int length = body.length();
+		int i = 0;
+		for (; i + 4 <= length; i += 4) {
+			long v = body.charAt(i) | (long) body.charAt(i + 1) << 16 | (long) body.charAt(i + 2) << 32 | (long) body.charAt(i + 3) << 48;
+			h1 = Long.rotateLeft(h1 ^ v * 0x87C37B91114253D5L, 31) * 0x4CF5AD432745937FL;
+			h2 = Long.rotateLeft(h2 + v * 0x4CF5AD432745937FL, 27) * 0x87C37B91114253D5L;
+		}
+		for (; i < length; i++) {
+			h1 = (h1 ^ body.charAt(i)) * 0x100000001B3L;
+			h2 = Long.rotateLeft(h2 + body.charAt(i), 17) * 0x9E3779B97F4A7C15L;
+		}
+		h1 = mix(h1 ^ h2);
+		h2 = mix(h2 + h1);
+		return new Key(h1, h2, fingerprint, kind);
+	}
+
+	private static long mix(long h) {
+		h = (h ^ (h >>> 33)) * 0xFF51AFD7ED558CCDL;
+		h = (h ^ (h >>> 33)) * 0xC4CEB9FE1A85EC53L;
+		return h ^ (h >>> 33);
+	}
+
+	/**
+	 * Returns the result of the body, or null if it is not held, and counts that it was asked for.
+	 *
+	 * @param key
+	 * @param body
+	 * @return
+	 */
+	Object get(Key key, String body) {
+		Stripe stripe = stripe(key);
+		Entry entry;
+		stripe.lock.lock();
+		try {
+			stripe.sketch.increment(key.low);
+			entry = stripe.entries.get(key);
+		} finally {
+			stripe.lock.unlock();
+		}
+		if (entry != null && entry.body.equals(body)) {
+			hits.increment();
+			return entry.value;
+		}
+		misses.increment();
+		return null;
+	}
+
+	/**
+	 * Adds the result of the body if there is room for it, or if its body was asked for more often
+	 * than those of the least recently used results it would replace.
+	 *
+	 * @param key
+	 * @param body
+	 * @param value
+	 */
+	void put(Key key, String body, Object value) {
+		Stripe stripe = stripe(key);
+		long weight = byWeight ? body.length() : 1;
+		if (weight > stripe.bound)
+			return;
+		stripe.lock.lock();
+		try {
+			// The result held for the key, if any, is replaced, so its room counts as free. It is
+			// only removed once the new result is admitted.
+			Entry old = stripe.entries.get(key);
+			long held = stripe.weight - (old != null ? old.weight : 0);
+			if (held + weight > stripe.bound) {
+				int frequency = stripe.sketch.frequency(key.low);
+				List<Key> victims = new ArrayList<Key>();
+				long freed = 0;
+				Iterator<Entry> lru = stripe.entries.values().iterator();
+				while (held - freed + weight > stripe.bound) {
+					Entry victim = lru.next();
+					if (victim == old)
+						continue;
+					if (stripe.sketch.frequency(victim.key.low) >= frequency)
+						return;
+					victims.add(victim.key);
+					freed += victim.weight;
+				}
+				for (Key victim : victims)
+					stripe.entries.remove(victim);
+				held -= freed;
+				evictions.add(victims.size());
+			}
+			stripe.entries.put(key, new Entry(key, body, value, weight));
+			stripe.weight = held + weight;
+		} finally {
+			stripe.lock.unlock();
+		}
+	}
+
+	private Stripe stripe(Key key) {
+		return stripes[(int) (key.high >>> 32) & (stripes.length - 1)];
+	}
+
+	/**
+	 * The key of a result: the hash of its body, the fingerprint of the configuration and the kind of result.
+	 */
+	static final class Key {
+		private final long high;
+		private final long low;
+		private final long fingerprint;
+		private final int kind;
+
+		Key(long high, long low, long fingerprint, int kind) {
+			this.high = high;
+			this.low = low;
+			this.fingerprint = fingerprint;
+			this.kind = kind;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (low ^ (low >>> 32));
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+			Key other = (Key) o;
+			return high == other.high && low == other.low && fingerprint == other.fingerprint && kind == other.kind;
+		}
+	}
+
+	private static final class Entry {
+		final Key key;
+		final String body;
+		final Object value;
+		final long weight;
+
+		Entry(Key key, String body, Object value, long weight) {
+			this.key = key;
+			this.body = body;
+			this.value = value;
+			this.weight = weight;
+		}
+	}
+
+	/**
+	 * A share of the cache, its results from the least to the most recently used, and its sketch.
+	 */
+	private static final class Stripe {
+		final ReentrantLock lock = new ReentrantLock();
+		final Map<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+		final FrequencySketch sketch;
+		final long bound;
+		long weight;
+
+		Stripe(long bound, int expectedEntries) {
+			this.bound = bound;
+			this.sketch = new FrequencySketch(expectedEntries);
+		}
+	}
+
+	/**
+	 * Approximate counts of how often each key was asked for, up to 15, in four rows of 4-bit counters.
+	 * Once it has counted ten times as many requests as it has counters per row, every count is halved,
+	 * so the counts follow what is asked for lately.
+	 */
+	private static final class FrequencySketch {
+		private static final long[] SEEDS = { 0xC3A5C85C97CB3127L, 0xB492B66FBE98F273L, 0x9AE16A3B2F90404FL, 0xCBF29CE484222325L };
+		private static final long HALF_MASK = 0x7777777777777777L;
+
+		private final long[] table;
+		private final int sampleSize;
+		private int samples;
+
+		FrequencySketch(int expectedEntries) {
+			int length = Integer.highestOneBit(Math.max(8, expectedEntries - 1) << 1) / 4;
+			table = new long[Math.max(2, length)];
+			sampleSize = 10 * table.length * 4;
+		}
+
+		void increment(long hash) {
+			boolean added = false;
+			for (int row = 0; row < 4; row++) {
+				int index = index(hash, row);
+				int shift = shift(hash, row);
+				if (((table[index] >>> shift) & 0xF) < 15) {
+					table[index] += 1L << shift;
+					added = true;
+				}
+			}
+			if (added && ++samples == sampleSize) {
+				for (int i = 0; i < table.length; i++)
+					table[i] = (table[i] >>> 1) & HALF_MASK;
+				samples /= 2;
+			}
+		}
+
+		int frequency(long hash) {
+			int frequency = 15;
+			for (int row = 0; row < 4; row++)
+				frequency = Math.min(frequency, (int) ((table[index(hash, row)] >>> shift(hash, row)) & 0xF));
+			return frequency;
+		}
+
+		private int index(long hash, int row) {
+			long h = (hash + SEEDS[row]) * SEEDS[row];
+			return (int) (h ^ (h >>> 32)) & (table.length - 1);
+		}
+
+		private int shift(long hash, int row) {
+			long h = (hash ^ SEEDS[row]) * 0x9E3779B97F4A7C15L;
+			return (int) (h >>> 60) << 2;
+		}
+	}
+}
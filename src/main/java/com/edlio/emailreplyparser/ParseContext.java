@@ -0,0 +1,224 @@
+package com.edlio.emailreplyparser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+
+/**
+ * Scratch space of {@link EmailParser}, kept from one parse to the next so that a parse
+ * allocates little beyond the {@link Email} it returns: the line offsets, the fragment
+ * records, the views of lines and paragraphs the rules are matched against, and the matchers
+ * with the thread lists of the linear time engine.
+ *
+ * A context is not thread-safe: give each thread its own, for instance one per worker,
+ * and pass it to {@link EmailParser#parse(CharSequence, ParseContext)} or
+ * {@link EmailParser#parseReply(CharSequence, ParseContext)}. It can be used with any parser.
+ * It does not hold on to the text of an email once the parse returns.
+ */
+public final class ParseContext {
+	Lines lines = new Lines("", 16);
+	Deadline deadline = Deadline.NONE;
+	// Null unless the parse notes where it is for a thread history.
+	ThreadHistory history;
+	// Fragments as the parser finds them, bottom up, and the ones returned.
+	final List<FragmentDTO> fragments = new ArrayList<FragmentDTO>();
+	final List<Fragment> results = new ArrayList<Fragment>();
+
+	private FragmentDTO[] records = new FragmentDTO[16];
+	private int used;
+	private final TextView line = new TextView();
+	private final TextView paragraph = new TextView();
+	private final StringBuilder joined = new StringBuilder();
+	private Matcher signatureMatcher;
+	// Matchers of the quote header rules, for the QuoteHeaderMatcher they were made from.
+	private QuoteHeaderMatcher headerRules;
+	private Matcher[] headerMatchers;
+	// The same for the signature rules of the locale packs.
+	private QuoteHeaderMatcher signatureRules;
+	private Matcher[] signatureRuleMatchers;
+	// Thread lists of the linear time engine, for whichever matcher runs.
+	private LinearMatcher.Scratch linearScratch;
+
+	public ParseContext() {
+	}
+
+	/**
+	 * Gets ready for a parse with the given deadline, reusing the fragment records.
+	 *
+	 * @param deadline
+	 */
+	void start(Deadline deadline) {
+		this.deadline = deadline;
+		reuseFragments();
+	}
+
+	/**
+	 * Makes the fragment records handed out so far available again, and empties the lists.
+	 */
+	void reuseFragments() {
+		used = 0;
+		fragments.clear();
+		results.clear();
+	}
+
+	/**
+	 * Drops every reference to the text of the last email.
+	 */
+	void finish() {
+		lines.reset("");
+		deadline = Deadline.NONE;
+		history = null;
+		fragments.clear();
+		results.clear();
+		line.set("", 0, 0);
+		paragraph.set("", 0, 0);
+		joined.setLength(0);
+		if (signatureMatcher != null)
+			signatureMatcher.reset("");
+		reset(headerMatchers);
+		reset(signatureRuleMatchers);
+	}
+
+	private static void reset(Matcher[] matchers) {
+		if (matchers != null) {
+			for (Matcher matcher : matchers) {
+				if (matcher != null)
+					matcher.reset("");
+			}
+		}
+	}
+
+	/**
+	 * Returns a fragment record with every field reset, valid until the next {@link #reuseFragments()}.
+	 *
+	 * @return
+	 */
+	FragmentDTO newFragment() {
+		if (used == records.length)
+			records = Arrays.copyOf(records, used * 2);
+		FragmentDTO fragment = records[used];
+		if (fragment == null) {
+			fragment = new FragmentDTO();
+			records[used] = fragment;
+		} else {
+			fragment.firstLine = 0;
+			fragment.lastLine = 0;
+			fragment.isHidden = false;
+			fragment.isSignature = false;
+			fragment.isQuoted = false;
+		}
+		used++;
+		return fragment;
+	}
+
+	/**
+	 * Returns the text of a line, as a view valid until the next call.
+	 *
+	 * @param line
+	 * @return
+	 */
+	CharSequence line(int line) {
+		this.line.set(lines.text(), lines.start(line), lines.end(line));
+		return this.line;
+	}
+
+	/**
+	 * Returns the lines from first to last (inclusive) joined by "\n", valid until the next call.
+	 * When they are already only separated by "\n" in the text, this is a view of the text.
+	 *
+	 * @param first
+	 * @param last
+	 * @return
+	 */
+	CharSequence paragraph(int first, int last) {
+		CharSequence text = lines.text();
+		for (int i = first; i < last; i++) {
+			if (lines.end(i) + 1 != lines.start(i + 1) || text.charAt(lines.end(i)) != '\n') {
+				joined.setLength(0);
+				return lines.append(joined, first, last);
+			}
+		}
+		paragraph.set(text, lines.start(first), lines.end(last));
+		return paragraph;
+	}
+
+	Matcher signatureMatcher(CharSequence text) {
+		if (signatureMatcher == null)
+			signatureMatcher = EmailParser.SENT_FROM_PATTERN.matcher(text);
+		else
+			signatureMatcher.reset(text);
+		return signatureMatcher;
+	}
+
+	/**
+	 * Returns the matchers to reuse with the given rules.
+	 *
+	 * @param rules
+	 * @return
+	 */
+	Matcher[] headerMatchers(QuoteHeaderMatcher rules) {
+		if (headerRules != rules) {
+			headerRules = rules;
+			headerMatchers = rules.newMatchers();
+		}
+		return headerMatchers;
+	}
+
+	/**
+	 * Returns the matchers to reuse with the given signature rules.
+	 *
+	 * @param rules
+	 * @return
+	 */
+	Matcher[] signatureRuleMatchers(QuoteHeaderMatcher rules) {
+		if (signatureRules != rules) {
+			signatureRules = rules;
+			signatureRuleMatchers = rules.newMatchers();
+		}
+		return signatureRuleMatchers;
+	}
+
+	/**
+	 * Returns the scratch to reuse with the matchers of the linear time engine.
+	 *
+	 * @return
+	 */
+	LinearMatcher.Scratch linearScratch() {
+		if (linearScratch == null)
+			linearScratch = new LinearMatcher.Scratch();
+		return linearScratch;
+	}
+
+	/**
+	 * A part of a text, moved around without copying it.
+	 */
+	private static final class TextView implements CharSequence {
+		private CharSequence text;
+		private int start;
+		private int end;
+
+		void set(CharSequence text, int start, int end) {
+			this.text = text;
+			this.start = start;
+			this.end = end;
+		}
+
+		public int length() {
+			return end - start;
+		}
+
+		public char charAt(int index) {
+			return text.charAt(start + index);
+		}
+
+		public CharSequence subSequence(int start, int end) {
+			return text.subSequence(this.start + start, this.start + end);
+		}
+
+		@Override
+		public String toString() {
+			return text.subSequence(start, end).toString();
+		}
+	}
+}
@@ -0,0 +1,233 @@
+package com.edlio.emailreplyparser;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A {@link Flow.Processor} stage that parses the email texts it receives, see
+ * {@link #emails(EmailParser, Executor, int)} and {@link #replies(EmailParser, Executor, int)}.
+ *
+ * The emails are parsed on the executor, several at a time, and passed on in the order they came in.
+ * At most maxInFlight emails are requested from upstream and not passed on yet:
+ * more are only requested as the subscriber takes results, so a slow subscriber slows
+ * down the publisher instead of filling memory.
+ *
+ * The stage has a single subscriber. It passes on the error of the publisher right away,
+ * dropping the emails still in flight, and a parse that throws ends it with that error.
+ *
+ * @param <T> {@link Email}, or String for the visible text
+ */
+public final class ParseProcessor<T> implements Flow.Processor<CharSequence, T> {
+	private final EmailParser parser;
+	private final boolean repliesOnly;
+	private final Executor executor;
+	private final int maxInFlight;
+
+	private final AtomicReference<Flow.Subscriber<? super T>> subscriber = new AtomicReference<Flow.Subscriber<? super T>>();
+	private final AtomicReference<Flow.Subscription> upstream = new AtomicReference<Flow.Subscription>();
+	private final AtomicBoolean started = new AtomicBoolean();
+	// The emails received and not passed on yet, in order.
+	private final Queue<Slot> inFlight = new ConcurrentLinkedQueue<Slot>();
+	private final AtomicLong demand = new AtomicLong();
+	// Signals to the subscriber are sent by one thread at a time, the one that raised this from zero.
+	private final AtomicInteger drains = new AtomicInteger();
+	private volatile boolean upstreamDone;
+	private volatile Throwable error;
+	private volatile boolean terminated;
+
+	private ParseProcessor(EmailParser parser, boolean repliesOnly, Executor executor, int maxInFlight) {
+		if (maxInFlight < 1)
+			throw new IllegalArgumentException("maxInFlight must be positive: " + maxInFlight);
+		this.parser = parser;
+		this.repliesOnly = repliesOnly;
+		this.executor = executor;
+		this.maxInFlight = maxInFlight;
+	}
+
+	/**
+	 * Returns a stage that parses each email text into an {@link Email}.
+	 *
+	 * @param parser
+	 * @param executor the parses run on, its threads bound how many run at once
+	 * @param maxInFlight the most emails received and not passed on yet
+	 * @return
+	 */
+	public static ParseProcessor<Email> emails(EmailParser parser, Executor executor, int maxInFlight) {
+		return new ParseProcessor<Email>(parser, false, executor, maxInFlight);
+	}
+
+	/**
+	 * Returns a stage that turns each email text into its visible text, see {@link EmailParser#parseReply(CharSequence)}.
+	 *
+	 * @param parser
+	 * @param executor the parses run on, its threads bound how many run at once
+	 * @param maxInFlight the most emails received and not passed on yet
+	 * @return
+	 */
+	public static ParseProcessor<String> replies(EmailParser parser, Executor executor, int maxInFlight) {
+		return new ParseProcessor<String>(parser, true, executor, maxInFlight);
+	}
+
+	public void subscribe(Flow.Subscriber<? super T> subscriber) {
+		if (subscriber == null)
+			throw new NullPointerException();
+		if (!this.subscriber.compareAndSet(null, subscriber)) {
+			subscriber.onSubscribe(new Flow.Subscription() {
+				public void request(long n) {
+				}
+
+				public void cancel() {
+				}
+			});
+			subscriber.onError(new IllegalStateException("ParseProcessor has a single subscriber"));
+			return;
+		}
+		subscriber.onSubscribe(new Flow.Subscription() {
+			public void request(long n) {
+				if (n <= 0) {
+					error = new IllegalArgumentException("Non-positive request: " + n);
+				} else {
+					long current;
+					do {
+						current = demand.get();
+					} while (!demand.compareAndSet(current, current + n < 0 ? Long.MAX_VALUE : current + n));
+				}
+				drain();
+			}
+
+			public void cancel() {
+				terminated = true;
+				cancelUpstream();
+				inFlight.clear();
+			}
+		});
+		start();
+		drain();
+	}
+
+	public void onSubscribe(Flow.Subscription subscription) {
+		if (!upstream.compareAndSet(null, subscription)) {
+			subscription.cancel();
+			return;
+		}
+		start();
+	}
+
+	public void onNext(CharSequence emailText) {
+		if (terminated)
+			return;
+		// The publisher may reuse a mutable text once onNext returns.
+		final CharSequence text = emailText instanceof String || emailText instanceof Utf8Text ? emailText : emailText.toString();
+		final Slot slot = new Slot();
+		inFlight.add(slot);
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						slot.result = repliesOnly ? parser.parseReply(text) : parser.parse(text);
+					} catch (Throwable e) {
+						slot.error = e;
+					}
+					slot.done = true;
+					drain();
+				}
+			});
+		} catch (RuntimeException e) {
+			slot.error = e;
+			slot.done = true;
+			drain();
+		}
+	}
+
+	public void onError(Throwable throwable) {
+		error = throwable;
+		drain();
+	}
+
+	public void onComplete() {
+		upstreamDone = true;
+		drain();
+	}
+
+	/**
+	 * Requests the first emails from upstream once there is both a publisher and a subscriber.
+	 */
+	private void start() {
+		Flow.Subscription subscription = upstream.get();
+		if (subscription != null && subscriber.get() != null && started.compareAndSet(false, true))
+			subscription.request(maxInFlight);
+	}
+
+	private void cancelUpstream() {
+		Flow.Subscription subscription = upstream.get();
+		if (subscription != null)
+			subscription.cancel();
+	}
+
+	/**
+	 * Passes on the parsed emails at the head of the queue, as far as the subscriber asked for,
+	 * and the end of the stream. Requests as many emails from upstream as were passed on.
+	 */
+	@SuppressWarnings("unchecked")
+	private void drain() {
+		if (drains.getAndIncrement() != 0)
+			return;
+		int missed = 1;
+		do {
+			Flow.Subscriber<? super T> s = subscriber.get();
+			if (s != null && !terminated) {
+				long passed = 0;
+				while (true) {
+					if (error != null) {
+						fail(s, error);
+						break;
+					}
+					Slot head = inFlight.peek();
+					if (head == null || !head.done)
+						break;
+					if (head.error != null) {
+						fail(s, head.error);
+						break;
+					}
+					if (passed == demand.get())
+						break;
+					inFlight.poll();
+					s.onNext((T) head.result);
+					passed++;
+				}
+				if (passed > 0 && !terminated) {
+					if (demand.get() != Long.MAX_VALUE)
+						demand.addAndGet(-passed);
+					upstream.get().request(passed);
+				}
+				if (!terminated && upstreamDone && inFlight.isEmpty()) {
+					terminated = true;
+					s.onComplete();
+				}
+			}
+			missed = drains.addAndGet(-missed);
+		} while (missed != 0);
+	}
+
+	private void fail(Flow.Subscriber<? super T> s, Throwable e) {
+		terminated = true;
+		cancelUpstream();
+		inFlight.clear();
+		s.onError(e);
+	}
+
+	/**
+	 * An email received, and its result once parsed.
+	 */
+	private static class Slot {
+		Object result;
+		Throwable error;
+		volatile boolean done;
+	}
+}
@@ -0,0 +1,233 @@
+package com.edlio.emailreplyparser;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Matches a paragraph against all the quote headers regular expressions at once.
+ *
+ * Every rule {@link RegexParser} understands goes into one {@link LinearMatcher}, whose lazy DFA
+ * scans a paragraph once and looks up one table entry per character, so the cost of a paragraph
+ * stays the same as rules and locale packs are added. The DFA tells which rule matched.
+ *
+ * The other rules are combined into a single {@link Pattern} alternation, each rule in its own
+ * capturing group, and the capturing group that took part in the match tells which rule matched.
+ * Rules that cannot be combined safely (backreferences, named groups, \Q quoting, comments)
+ * are kept as separate patterns and tried after the combined one.
+ *
+ * Before any regular expression runs, a {@link LiteralPrefilter} built from the rules
+ * rejects the paragraphs that contain none of the literals the rules depend on.
+ */
+class QuoteHeaderMatcher {
+	static final int FLAGS = Pattern.MULTILINE | Pattern.DOTALL;
+
+	private static final Pattern UNCOMBINABLE = Pattern.compile("\\\\[1-9kQ]|\\(\\?<[a-zA-Z]|\\(\\?[a-zA-Z-]*x");
+
+	private final Pattern combined;
+	// Rule index and group number for each rule in the combined pattern.
+	private final int[] combinedRules;
+	private final int[] combinedGroups;
+	// Rule index and pattern for each rule kept on its own.
+	private final int[] separateRules;
+	private final List<Pattern> separatePatterns;
+	// Null if RegexParser understands none of the rules.
+	private final LinearMatcher linear;
+	// Null if some rule has no required literals.
+	private final LiteralPrefilter prefilter;
+
+	QuoteHeaderMatcher(List<String> quoteHeadersRegex) {
+		List<RegexNode> nodes = new ArrayList<RegexNode>();
+		for (String regex : quoteHeadersRegex)
+			nodes.add(parse(regex));
+
+		LinearMatcher linear = null;
+		boolean[] isLinear = new boolean[nodes.size()];
+		List<RegexNode> linearNodes = new ArrayList<RegexNode>();
+		List<Integer> linearRules = new ArrayList<Integer>();
+		for (int i = 0; i < nodes.size(); i++) {
+			if (nodes.get(i) != null) {
+				linearNodes.add(nodes.get(i));
+				linearRules.add(i);
+			}
+		}
+		try {
+			if (!linearNodes.isEmpty())
+				linear = new LinearMatcher(linearNodes, toArray(linearRules));
+			for (int rule : linearRules)
+				isLinear[rule] = true;
+		} catch (RegexParser.UnsupportedRegexException e) {
+			// The rules are too large for one program together, leave them to Pattern.
+			linear = null;
+		}
+
+		List<Integer> rules = new ArrayList<Integer>();
+		List<Integer> groups = new ArrayList<Integer>();
+		List<Integer> others = new ArrayList<Integer>();
+		List<Pattern> otherPatterns = new ArrayList<Pattern>();
+		StringBuilder alternation = new StringBuilder();
+
+		int group = 1;
+		for (int i = 0; i < quoteHeadersRegex.size(); i++) {
+			String regex = quoteHeadersRegex.get(i);
+			Pattern pattern = Pattern.compile(regex, FLAGS);
+			if (isLinear[i])
+				continue;
+			if (UNCOMBINABLE.matcher(regex).find()) {
+				others.add(i);
+				otherPatterns.add(pattern);
+				continue;
+			}
+			if (alternation.length() > 0)
+				alternation.append('|');
+			alternation.append('(').append(regex).append(')');
+			rules.add(i);
+			groups.add(group);
+			group += 1 + pattern.matcher("").groupCount();
+		}
+
+		Pattern combined = null;
+		if (!rules.isEmpty()) {
+			try {
+				combined = Pattern.compile(alternation.toString(), FLAGS);
+				if (combined.matcher("").groupCount() != group - 1)
+					combined = null;
+			} catch (PatternSyntaxException e) {
+				combined = null;
+			}
+			if (combined == null) {
+				// Should not happen for well-formed rules, but never trade correctness for speed.
+				for (int i = 0; i < rules.size(); i++) {
+					others.add(rules.get(i));
+					otherPatterns.add(Pattern.compile(quoteHeadersRegex.get(rules.get(i)), FLAGS));
+				}
+				rules.clear();
+				groups.clear();
+			}
+		}
+
+		this.combined = combined;
+		this.combinedRules = toArray(rules);
+		this.combinedGroups = toArray(groups);
+		this.separateRules = toArray(others);
+		this.separatePatterns = Collections.unmodifiableList(otherPatterns);
+		this.linear = linear;
+		this.prefilter = nodes.contains(null) ? null : LiteralPrefilter.forRules(nodes);
+	}
+
+	/**
+	 * Parses a rule, or returns null if it is outside of the subset {@link RegexParser} understands.
+	 *
+	 * @param regex
+	 * @return
+	 */
+	private static RegexNode parse(String regex) {
+		try {
+			return RegexParser.parse(regex, FLAGS);
+		} catch (RegexParser.UnsupportedRegexException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Checks if the lines from first (inclusive) to end (exclusive), joined by "\n",
+	 * may contain one of the quote headers. When this returns false, {@link #find(CharSequence)}
+	 * would return -1 for the same content.
+	 *
+	 * @param lines
+	 * @param first
+	 * @param end
+	 * @return
+	 */
+	boolean mayMatch(Lines lines, int first, int end) {
+		if (prefilter == null)
+			return true;
+		CharSequence text = lines.text();
+		int state = prefilter.start();
+		for (int i = first; i < end; i++) {
+			if (i > first) {
+				state = prefilter.step(state, '\n');
+				if (prefilter.isMatch(state))
+					return true;
+			}
+			for (int j = lines.start(i); j < lines.end(i); j++) {
+				state = prefilter.step(state, text.charAt(j));
+				if (prefilter.isMatch(state))
+					return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the index of a quote headers regular expression found in the content, or -1.
+	 *
+	 * @param content
+	 * @return
+	 */
+	int find(CharSequence content) {
+		return find(content, newMatchers(), new LinearMatcher.Scratch());
+	}
+
+	/**
+	 * Returns the index of a quote headers regular expression found in the content, or -1,
+	 * reusing matchers from {@link #newMatchers()} and the scratch of the linear time engine.
+	 *
+	 * @param content
+	 * @param matchers
+	 * @param scratch
+	 * @return
+	 */
+	int find(CharSequence content, Matcher[] matchers, LinearMatcher.Scratch scratch) {
+		if (linear != null) {
+			int rule = linear.find(content, scratch);
+			if (rule != -1)
+				return rule;
+		}
+		if (combined != null) {
+			Matcher m = matcher(matchers, 0, combined, content);
+			if (m.find()) {
+				for (int i = 0; i < combinedGroups.length; i++) {
+					if (m.start(combinedGroups[i]) != -1)
+						return combinedRules[i];
+				}
+			}
+		}
+		for (int i = 0; i < separateRules.length; i++) {
+			if (matcher(matchers, i + 1, separatePatterns.get(i), content).find())
+				return separateRules[i];
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns room for one matcher of each pattern, the combined one first.
+	 * The matchers are only created when first needed.
+	 *
+	 * @return
+	 */
+	Matcher[] newMatchers() {
+		return new Matcher[1 + separateRules.length];
+	}
+
+	private static Matcher matcher(Matcher[] matchers, int index, Pattern pattern, CharSequence content) {
+		Matcher m = matchers[index];
+		if (m == null) {
+			m = pattern.matcher(content);
+			matchers[index] = m;
+		} else {
+			m.reset(content);
+		}
+		return m;
+	}
+
+	private static int[] toArray(List<Integer> list) {
+		int[] array = new int[list.size()];
+		for (int i = 0; i < array.length; i++)
+			array[i] = list.get(i);
+		return array;
+	}
+}
@@ -0,0 +1,19 @@
+package com.edlio.emailreplyparser;
+
+/**
+ * Regular expression engines an {@link EmailParser} can use to match quote headers and signatures.
+ */
+public enum RegexEngine {
+	/**
+	 * {@link java.util.regex.Pattern} for the signature rule, and for the quote header rules
+	 * {@link #LINEAR_TIME} does not support. Backtracking can take a long time on some rules and inputs.
+	 */
+	JAVA_UTIL_REGEX,
+
+	/**
+	 * A Thompson NFA simulation, cached as a lazy DFA, whose running time is linear in the length of the text.
+	 * Rules using constructs it does not support (backreferences, lookaround, possessive
+	 * quantifiers, inline flags, Unicode properties, ...) fall back to {@link java.util.regex.Pattern}.
+	 */
+	LINEAR_TIME
+}
@@ -0,0 +1,97 @@
+package com.edlio.emailreplyparser;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Syntax tree of a quote headers regular expression, as parsed by {@link RegexParser}.
+ *
+ * Only the constructs needed to reason about the rules are kept: sets of code points,
+ * zero-width assertions, concatenation, alternation and repetition.
+ * Groups are flattened away, since capturing does not change whether a rule matches.
+ */
+abstract class RegexNode {
+
+	/**
+	 * Matches one code point out of a set of ranges.
+	 */
+	static final class CharSet extends RegexNode {
+		/** Sorted, disjoint and non-adjacent ranges: lo0, hi0, lo1, hi1, ... (inclusive). */
+		final int[] ranges;
+
+		CharSet(int[] ranges) {
+			this.ranges = ranges;
+		}
+
+		boolean contains(int codePoint) {
+			for (int i = 0; i < ranges.length; i += 2) {
+				if (codePoint < ranges[i])
+					return false;
+				if (codePoint <= ranges[i + 1])
+					return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Returns the number of code points in the set.
+		 *
+		 * @return
+		 */
+		int size() {
+			int size = 0;
+			for (int i = 0; i < ranges.length; i += 2)
+				size += ranges[i + 1] - ranges[i] + 1;
+			return size;
+		}
+	}
+
+	/**
+	 * Matches the empty string at positions where a condition holds.
+	 */
+	static final class Assertion extends RegexNode {
+		static final int BEGIN_LINE = 0;
+		static final int END_LINE = 1;
+		static final int BEGIN_TEXT = 2;
+		static final int END_TEXT = 3;
+		/** End of the text, or right before a line terminator that ends the text. */
+		static final int END_TEXT_BEFORE_TERMINATOR = 4;
+
+		final int kind;
+
+		Assertion(int kind) {
+			this.kind = kind;
+		}
+	}
+
+	static final class Concat extends RegexNode {
+		final List<RegexNode> nodes;
+
+		Concat(List<RegexNode> nodes) {
+			this.nodes = Collections.unmodifiableList(nodes);
+		}
+	}
+
+	static final class Alternate extends RegexNode {
+		final List<RegexNode> nodes;
+
+		Alternate(List<RegexNode> nodes) {
+			this.nodes = Collections.unmodifiableList(nodes);
+		}
+	}
+
+	static final class Repeat extends RegexNode {
+		/** Marks an unbounded maximum. */
+		static final int UNBOUNDED = -1;
+
+		final RegexNode node;
+		final int min;
+		final int max;
+
+		Repeat(RegexNode node, int min, int max) {
+			this.node = node;
+			this.min = min;
+			this.max = max;
+		}
+	}
+}
@@ -0,0 +1,387 @@
+package com.edlio.emailreplyparser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Parses the subset of {@link java.util.regex.Pattern} syntax used by quote headers rules
+ * into a {@link RegexNode} tree.
+ *
+ * Literals, escapes, character classes, groups, alternation, greedy and lazy quantifiers
+ * and the ^ and $ anchors are supported, together with the MULTILINE and DOTALL flags.
+ * Anything else (backreferences, lookaround, possessive quantifiers, inline flags,
+ * Unicode properties, ...) makes {@link #parse(String, int)} throw {@link UnsupportedRegexException}.
+ * The regular expression is expected to have been compiled by {@link Pattern} already,
+ * so syntax errors are reported the same way.
+ */
+class RegexParser {
+	private static final int SUPPORTED_FLAGS = Pattern.MULTILINE | Pattern.DOTALL;
+
+	static final int[] ALL = {0, Character.MAX_CODE_POINT};
+	static final int[] LINE_TERMINATORS = {'\n', '\n', '\r', '\r', 0x85, 0x85, 0x2028, 0x2029};
+	static final int[] SPACE = {'\t', '\r', ' ', ' '};
+	static final int[] DIGIT = {'0', '9'};
+	static final int[] WORD = {'0', '9', 'A', 'Z', '_', '_', 'a', 'z'};
+
+	private final String regex;
+	private final boolean multiline;
+	private final boolean dotall;
+	private int pos;
+
+	private RegexParser(String regex, int flags) {
+		this.regex = regex;
+		this.multiline = (flags & Pattern.MULTILINE) != 0;
+		this.dotall = (flags & Pattern.DOTALL) != 0;
+	}
+
+	/**
+	 * Parses the regular expression.
+	 *
+	 * @param regex
+	 * @param flags {@link Pattern} flags
+	 * @return
+	 * @throws UnsupportedRegexException if the regular expression is outside of the supported subset
+	 */
+	static RegexNode parse(String regex, int flags) {
+		if ((flags & ~SUPPORTED_FLAGS) != 0)
+			throw new UnsupportedRegexException("flags " + flags);
+		RegexParser parser = new RegexParser(regex, flags);
+		RegexNode node = parser.alternation();
+		if (parser.pos != regex.length())
+			throw parser.unsupported();
+		return node;
+	}
+
+	private RegexNode alternation() {
+		List<RegexNode> nodes = new ArrayList<RegexNode>();
+		nodes.add(concat());
+		while (peek() == '|') {
+			pos++;
+			nodes.add(concat());
+		}
+		return nodes.size() == 1 ? nodes.get(0) : new RegexNode.Alternate(nodes);
+	}
+
+	private RegexNode concat() {
+		List<RegexNode> nodes = new ArrayList<RegexNode>();
+		while (pos < regex.length() && peek() != '|' && peek() != ')') {
+			nodes.add(quantifier(atom()));
+		}
+		return nodes.size() == 1 ? nodes.get(0) : new RegexNode.Concat(nodes);
+	}
+
+	private RegexNode quantifier(RegexNode atom) {
+		int min;
+		int max;
+		switch (peek()) {
+		case '*':
+			pos++;
+			min = 0;
+			max = RegexNode.Repeat.UNBOUNDED;
+			break;
+		case '+':
+			pos++;
+			min = 1;
+			max = RegexNode.Repeat.UNBOUNDED;
+			break;
+		case '?':
+			pos++;
+			min = 0;
+			max = 1;
+			break;
+		case '{':
+			pos++;
+			min = number();
+			max = min;
+			if (peek() == ',') {
+				pos++;
+				max = peek() == '}' ? RegexNode.Repeat.UNBOUNDED : number();
+			}
+			expect('}');
+			break;
+		default:
+			return atom;
+		}
+		// Lazy quantifiers match the same strings; possessive ones do not.
+		if (peek() == '?')
+			pos++;
+		else if (peek() == '+')
+			throw unsupported();
+		return quantifier(new RegexNode.Repeat(atom, min, max));
+	}
+
+	private RegexNode atom() {
+		char c = regex.charAt(pos++);
+		switch (c) {
+		case '(':
+			return group();
+		case '[':
+			return new RegexNode.CharSet(charClass());
+		case '.':
+			return new RegexNode.CharSet(dotall ? ALL : complement(LINE_TERMINATORS));
+		case '^':
+			return new RegexNode.Assertion(multiline ? RegexNode.Assertion.BEGIN_LINE : RegexNode.Assertion.BEGIN_TEXT);
+		case '$':
+			return new RegexNode.Assertion(multiline ? RegexNode.Assertion.END_LINE : RegexNode.Assertion.END_TEXT_BEFORE_TERMINATOR);
+		case '\\':
+			return escape();
+		default:
+			return literal(codePointAt(c));
+		}
+	}
+
+	private RegexNode group() {
+		if (peek() == '?') {
+			pos++;
+			char kind = pos < regex.length() ? regex.charAt(pos++) : 0;
+			if (kind == '<' && pos < regex.length() && Character.isLetter(regex.charAt(pos))) {
+				// Named capturing group.
+				while (pos < regex.length() && regex.charAt(pos) != '>')
+					pos++;
+				expect('>');
+			} else if (kind != ':') {
+				// Lookaround, atomic groups and inline flags.
+				throw unsupported();
+			}
+		}
+		RegexNode node = alternation();
+		expect(')');
+		return node;
+	}
+
+	private RegexNode escape() {
+		char c = regex.charAt(pos++);
+		switch (c) {
+		case 'A':
+			return new RegexNode.Assertion(RegexNode.Assertion.BEGIN_TEXT);
+		case 'z':
+			return new RegexNode.Assertion(RegexNode.Assertion.END_TEXT);
+		case 'Z':
+			return new RegexNode.Assertion(RegexNode.Assertion.END_TEXT_BEFORE_TERMINATOR);
+		default:
+			return new RegexNode.CharSet(escapedSet(c));
+		}
+	}
+
+	/**
+	 * Returns the set for an escape sequence that stands for characters,
+	 * inside or outside of a character class.
+	 *
+	 * @param c the character after the backslash
+	 * @return
+	 */
+	private int[] escapedSet(char c) {
+		switch (c) {
+		case 's':
+			return SPACE;
+		case 'S':
+			return complement(SPACE);
+		case 'd':
+			return DIGIT;
+		case 'D':
+			return complement(DIGIT);
+		case 'w':
+			return WORD;
+		case 'W':
+			return complement(WORD);
+		case 'n':
+			return single('\n');
+		case 'r':
+			return single('\r');
+		case 't':
+			return single('\t');
+		case 'f':
+			return single('\f');
+		case 'a':
+			return single('\u0007');
+		case 'e':
+			return single('\u001B');
+		case 'x':
+			return single(hex(2));
+		case 'u':
+			return single(hex(4));
+		default:
+			// Escaped letters and digits have special meanings we do not support.
+			if (c < 128 && Character.isLetterOrDigit(c))
+				throw unsupported();
+			return single(codePointAt(c));
+		}
+	}
+
+	private int[] charClass() {
+		boolean negated = false;
+		if (peek() == '^') {
+			pos++;
+			negated = true;
+		}
+		List<int[]> items = new ArrayList<int[]>();
+		boolean first = true;
+		while (true) {
+			if (pos >= regex.length())
+				throw unsupported();
+			char c = regex.charAt(pos++);
+			if (c == ']' && !first)
+				break;
+			first = false;
+			if (c == '[' || (c == '&' && peek() == '&'))
+				throw unsupported();
+
+			int lo;
+			if (c == '\\') {
+				int[] set = escapedSet(regex.charAt(pos++));
+				if (set.length != 2 || set[0] != set[1]) {
+					items.add(set);
+					continue;
+				}
+				lo = set[0];
+			} else {
+				lo = codePointAt(c);
+			}
+
+			int hi = lo;
+			if (peek() == '-' && pos + 1 < regex.length() && regex.charAt(pos + 1) != ']') {
+				pos++;
+				char d = regex.charAt(pos++);
+				if (d == '[')
+					throw unsupported();
+				if (d == '\\') {
+					int[] set = escapedSet(regex.charAt(pos++));
+					if (set.length != 2 || set[0] != set[1])
+						throw unsupported();
+					hi = set[0];
+				} else {
+					hi = codePointAt(d);
+				}
+			}
+			items.add(new int[] {lo, hi});
+		}
+		int[] set = union(items);
+		return negated ? complement(set) : set;
+	}
+
+	private RegexNode literal(int codePoint) {
+		return new RegexNode.CharSet(single(codePoint));
+	}
+
+	/**
+	 * Returns the code point starting with the character just read,
+	 * consuming the low surrogate if there is one.
+	 *
+	 * @param c
+	 * @return
+	 */
+	private int codePointAt(char c) {
+		if (Character.isHighSurrogate(c) && pos < regex.length() && Character.isLowSurrogate(regex.charAt(pos)))
+			return Character.toCodePoint(c, regex.charAt(pos++));
+		return c;
+	}
+
+	private int number() {
+		int start = pos;
+		while (pos < regex.length() && regex.charAt(pos) >= '0' && regex.charAt(pos) <= '9')
+			pos++;
+		if (start == pos || pos - start > 9)
+			throw unsupported();
+		return Integer.parseInt(regex.substring(start, pos));
+	}
+
+	private int hex(int digits) {
+		if (pos + digits > regex.length())
+			throw unsupported();
+		try {
+			int value = Integer.parseInt(regex.substring(pos, pos + digits), 16);
+			pos += digits;
+			return value;
+		} catch (NumberFormatException e) {
+			throw unsupported();
+		}
+	}
+
+	private char peek() {
+		return pos < regex.length() ? regex.charAt(pos) : 0;
+	}
+
+	private void expect(char c) {
+		if (peek() != c)
+			throw unsupported();
+		pos++;
+	}
+
+	private UnsupportedRegexException unsupported() {
+		return new UnsupportedRegexException(regex + " at index " + pos);
+	}
+
+	static int[] single(int codePoint) {
+		return new int[] {codePoint, codePoint};
+	}
+
+	/**
+	 * Returns the union of the given sets of ranges, sorted and merged.
+	 *
+	 * @param sets
+	 * @return
+	 */
+	static int[] union(List<int[]> sets) {
+		List<int[]> ranges = new ArrayList<int[]>();
+		for (int[] set : sets) {
+			for (int i = 0; i < set.length; i += 2)
+				ranges.add(new int[] {set[i], set[i + 1]});
+		}
+		int[][] sorted = ranges.toArray(new int[ranges.size()][]);
+		Arrays.sort(sorted, new java.util.Comparator<int[]>() {
+			public int compare(int[] a, int[] b) {
+				return a[0] < b[0] ? -1 : a[0] == b[0] ? 0 : 1;
+			}
+		});
+		int[] merged = new int[sorted.length * 2];
+		int n = 0;
+		for (int[] range : sorted) {
+			if (range[0] > range[1])
+				continue;
+			if (n > 0 && range[0] <= merged[n - 1] + 1) {
+				merged[n - 1] = Math.max(merged[n - 1], range[1]);
+			} else {
+				merged[n++] = range[0];
+				merged[n++] = range[1];
+			}
+		}
+		return Arrays.copyOf(merged, n);
+	}
+
+	/**
+	 * Returns the code points that are not in the given sorted set of ranges.
+	 *
+	 * @param set
+	 * @return
+	 */
+	static int[] complement(int[] set) {
+		int[] result = new int[set.length + 2];
+		int n = 0;
+		int next = 0;
+		for (int i = 0; i < set.length; i += 2) {
+			if (set[i] > next) {
+				result[n++] = next;
+				result[n++] = set[i] - 1;
+			}
+			next = set[i + 1] + 1;
+		}
+		if (next <= Character.MAX_CODE_POINT) {
+			result[n++] = next;
+			result[n++] = Character.MAX_CODE_POINT;
+		}
+		return Arrays.copyOf(result, n);
+	}
+
+	/**
+	 * Thrown for regular expressions outside of the subset understood by {@link RegexParser}.
+	 */
+	static class UnsupportedRegexException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		UnsupportedRegexException(String message) {
+			super(message);
+		}
+	}
+}
@@ -0,0 +1,280 @@
+package com.edlio.emailreplyparser;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What {@link EmailParser} learned from the earlier messages of a thread, so that the history
+ * they quote is not classified again, see {@link EmailParser#parse(CharSequence, ThreadHistory)}.
+ *
+ * The parser classifies an email from the bottom up, so where it is at a line only depends on the
+ * lines below it. For the top of every paragraph, the history keeps where the parser was, under a
+ * hash of the lines from there to the end of the email. When a later email ends with the same lines,
+ * the parse starts from there and only classifies the lines above. The lines are compared as the
+ * parser reads them, without their trailing whitespace and whatever their line breaks: the hash
+ * finds a place, and the lines it was found under, which the history keeps, are compared to make
+ * sure of it.
+ *
+ * History quoted as it was, as below a "-----Original Message-----" header, or a message parsed
+ * twice, is found this way. History quoted with "> " in front of every line reads differently
+ * to the rules, so it is not, but it is always hidden and {@link EmailParser#parseReply(CharSequence)}
+ * already skips it.
+ *
+ * Every line of an email is still read once to hash it, but that costs little next to classifying
+ * it. A history holds the text of the emails its places were found in.
+ *
+ * A history is not thread-safe, and holds what one parser found: used with another parser, it
+ * starts over. The oldest places are dropped once it holds the maximum.
+ */
+public final class ThreadHistory {
+	private static final int DEFAULT_MAX_PLACES = 4096;
+	private static final long LINE_PRIME = 0x100000001B3L;
+	private static final long SUFFIX_MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+	private final Map<Long, Place> places;
+	private EmailParser parser;
+	// Hash of the lines from each line to the end of the email being parsed.
+	private long[] hashes = new long[16];
+	// Places found by the parse going on, kept once it is done.
+	private final List<Place> found = new ArrayList<Place>();
+	private int reusedLines;
+
+	/**
+	 * Creates a history holding up to 4096 places.
+	 */
+	public ThreadHistory() {
+		this(DEFAULT_MAX_PLACES);
+	}
+
+	/**
+	 * Creates a history holding up to the given number of places, about one per paragraph of each email.
+	 *
+	 * @param maxPlaces
+	 */
+	public ThreadHistory(final int maxPlaces) {
+		if (maxPlaces < 1)
+			throw new IllegalArgumentException("maxPlaces must be positive: " + maxPlaces);
+		places = new LinkedHashMap<Long, Place>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, Place> eldest) {
+				return size() > maxPlaces;
+			}
+		};
+	}
+
+	/**
+	 * Returns the number of lines the last parse took from the history instead of classifying them.
+	 *
+	 * @return
+	 */
+	public int getReusedLines() {
+		return reusedLines;
+	}
+
+	/**
+	 * Gets ready to parse the given lines, and returns the top of the longest run of lines
+	 * at the end of the email whose classification is known, or null if there is none.
+	 *
+	 * @param parser
+	 * @param lines
+	 * @return
+	 */
+	Place start(EmailParser parser, Lines lines) {
+		if (this.parser != parser) {
+			places.clear();
+			this.parser = parser;
+		}
+		found.clear();
+		reusedLines = 0;
+
+		int count = lines.count();
+		if (hashes.length < count + 1)
+			hashes = new long[Math.max(count + 1, hashes.length * 2)];
+		CharSequence text = lines.text();
+		long suffix = 0;
+		hashes[count] = suffix;
+		for (int i = count - 1; i >= 0; i--) {
+			long line = lines.length(i);
+			for (int c = lines.start(i); c < lines.end(i); c++)
+				line = (line ^ text.charAt(c)) * LINE_PRIME;
+			suffix = suffix * SUFFIX_MULTIPLIER + line;
+			hashes[i] = suffix;
+		}
+
+		for (int i = 0; i < count; i++) {
+			Place place = places.get(hashes[i]);
+			if (place != null && place.lines == count - i && place.matches(lines, i)) {
+				reusedLines = place.lines;
+				return place;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Notes where the parse is once it has classified the given line, if it is the top of a paragraph.
+	 *
+	 * @param lines
+	 * @param line
+	 * @param fragment the fragment being built
+	 * @param paragraphEnd
+	 * @param fragments the number of fragments already added below
+	 */
+	void reached(Lines lines, int line, FragmentDTO fragment, int paragraphEnd, int fragments) {
+		if (line > 0 && !lines.isEmpty(line - 1))
+			return;
+		int count = lines.count();
+		Place place = new Place();
+		place.hash = hashes[line];
+		place.lines = count - line;
+		place.fragments = fragments;
+		place.lastLine = count - fragment.lastLine;
+		place.isQuoted = fragment.isQuoted;
+		place.paragraphEnd = count - paragraphEnd;
+		found.add(place);
+	}
+
+	/**
+	 * Keeps the places found by the parse, whose fragments are now all added, from the bottom up.
+	 * Only a parse that classified every line may be kept.
+	 *
+	 * @param lines
+	 * @param fragments
+	 */
+	void keep(Lines lines, List<FragmentDTO> fragments) {
+		if (found.isEmpty())
+			return;
+		int count = lines.count();
+		int[] table = new int[fragments.size() * 3];
+		for (int i = 0; i < fragments.size(); i++) {
+			FragmentDTO f = fragments.get(i);
+			table[3 * i] = count - f.firstLine;
+			table[3 * i + 1] = count - f.lastLine;
+			table[3 * i + 2] = (f.isHidden ? 1 : 0) | (f.isSignature ? 2 : 0) | (f.isQuoted ? 4 : 0);
+		}
+		KeptLines kept = new KeptLines(lines);
+		for (Place place : found) {
+			place.table = table;
+			place.kept = kept;
+			places.put(place.hash, place);
+		}
+		found.clear();
+	}
+
+	/**
+	 * Drops the places found by the parse, when it did not classify every line.
+	 */
+	void discard() {
+		found.clear();
+	}
+
+	/**
+	 * The lines of a kept email as the parser read them, one after the other.
+	 */
+	private static final class KeptLines {
+		private final String chars;
+		// Where each line starts in chars, and where the last one ends.
+		private final int[] starts;
+
+		KeptLines(Lines lines) {
+			int count = lines.count();
+			CharSequence text = lines.text();
+			StringBuilder chars = new StringBuilder();
+			starts = new int[count + 1];
+			for (int i = 0; i < count; i++) {
+				starts[i] = chars.length();
+				chars.append(text, lines.start(i), lines.end(i));
+			}
+			starts[count] = chars.length();
+			this.chars = chars.toString();
+		}
+
+		int count() {
+			return starts.length - 1;
+		}
+
+		boolean sameLine(int line, Lines lines, int other) {
+			int start = starts[line];
+			int length = starts[line + 1] - start;
+			if (length != lines.end(other) - lines.start(other))
+				return false;
+			CharSequence text = lines.text();
+			int offset = lines.start(other) - start;
+			for (int c = start; c < start + length; c++) {
+				if (chars.charAt(c) != text.charAt(c + offset))
+					return false;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Where the parse was once it had classified the lines from the top of a paragraph to the end
+	 * of an email. Lines are counted from the end of the email, so that they hold in any email that
+	 * ends with the same lines.
+	 */
+	static final class Place {
+		private long hash;
+		private int lines;
+		// The email the place was found in.
+		private KeptLines kept;
+		// firstLine, lastLine and flags of every fragment of the email, from the bottom up.
+		private int[] table;
+		// Number of fragments below the paragraph, which come first in the table.
+		private int fragments;
+		// The fragment being built and the paragraphEnd.
+		private int lastLine;
+		private boolean isQuoted;
+		private int paragraphEnd;
+
+		/**
+		 * Returns whether the lines from the given one to the end of the email are the ones
+		 * the place was found under.
+		 *
+		 * @param lines
+		 * @param line
+		 * @return
+		 */
+		boolean matches(Lines lines, int line) {
+			int first = kept.count() - this.lines;
+			for (int i = 0; i < this.lines; i++) {
+				if (!kept.sameLine(first + i, lines, line + i))
+					return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Adds the fragments below the paragraph to the context and returns the fragment being built,
+		 * which starts at the top of the paragraph.
+		 *
+		 * @param context
+		 * @return
+		 */
+		FragmentDTO restore(ParseContext context) {
+			int count = context.lines.count();
+			for (int i = 0; i < fragments; i++) {
+				FragmentDTO f = context.newFragment();
+				f.firstLine = count - table[3 * i];
+				f.lastLine = count - table[3 * i + 1];
+				f.isHidden = (table[3 * i + 2] & 1) != 0;
+				f.isSignature = (table[3 * i + 2] & 2) != 0;
+				f.isQuoted = (table[3 * i + 2] & 4) != 0;
+				context.fragments.add(f);
+			}
+			FragmentDTO fragment = context.newFragment();
+			fragment.firstLine = count - lines;
+			fragment.lastLine = count - lastLine;
+			fragment.isQuoted = isQuoted;
+			return fragment;
+		}
+
+		int paragraphEnd(Lines lines) {
+			return lines.count() - paragraphEnd;
+		}
+	}
+}
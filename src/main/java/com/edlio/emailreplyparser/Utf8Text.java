@@ -0,0 +1,337 @@
+package com.edlio.emailreplyparser;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * UTF-8 encoded bytes read as a {@link CharSequence}, without decoding them first.
+ *
+ * The bytes are scanned once. If they are all ASCII, char i is byte i and nothing else is kept.
+ * Otherwise the chars that do not come from a single ASCII byte are indexed, and any other char
+ * is found from the last of them before it. Bytes that are not valid UTF-8 read as U+FFFD,
+ * once for each malformed sequence, the same as {@link String#String(byte[], java.nio.charset.Charset)}.
+ *
+ * The bytes must not change while the text is in use.
+ */
+final class Utf8Text implements CharSequence {
+	private static final long ASCII_MASK = 0x8080808080808080L;
+	private static final long LOW_BITS = 0x7F7F7F7F7F7F7F7FL;
+	private static final long LF_BYTES = 0x0A0A0A0A0A0A0A0AL;
+	private static final long CR_BYTES = 0x0D0D0D0D0D0D0D0DL;
+	private static final char REPLACEMENT = '\uFFFD';
+
+	private final ByteBuffer bytes;
+	private final int offset;
+	private final int end;
+	private final int length;
+	// Char index, and offset of its bytes from offset, of every char that is not a single ASCII byte,
+	// or null if there is none. Both halves of a surrogate pair have the offset of its 4 bytes.
+	private final int[] wideChars;
+	private final int[] wideBytes;
+
+	/**
+	 * Creates the text of the bytes of buffer from offset to end (exclusive).
+	 *
+	 * @param bytes
+	 * @param offset
+	 * @param end
+	 */
+	Utf8Text(ByteBuffer bytes, int offset, int end) {
+		this.bytes = bytes;
+		this.offset = offset;
+		this.end = end;
+
+		int[] chars = null;
+		int[] wide = null;
+		int count = 0;
+		int length = 0;
+		int i = offset;
+		while (i < end) {
+			// Skip ASCII 8 bytes at a time.
+			while (i + 8 <= end && (bytes.getLong(i) & ASCII_MASK) == 0) {
+				i += 8;
+				length += 8;
+			}
+			if (i == end)
+				break;
+			byte b = bytes.get(i);
+			if (b >= 0) {
+				i++;
+				length++;
+				continue;
+			}
+			int size = sequenceLength(bytes, i, end);
+			int units = size == 4 ? 2 : 1;
+			size = Math.abs(size);
+			if (chars == null) {
+				chars = new int[16];
+				wide = new int[16];
+			} else if (count + units > chars.length) {
+				chars = Arrays.copyOf(chars, chars.length * 2);
+				wide = Arrays.copyOf(wide, wide.length * 2);
+			}
+			for (int u = 0; u < units; u++) {
+				chars[count] = length++;
+				wide[count++] = i - offset;
+			}
+			i += size;
+		}
+		this.length = length;
+		this.wideChars = chars == null ? null : Arrays.copyOf(chars, count);
+		this.wideBytes = wide == null ? null : Arrays.copyOf(wide, count);
+	}
+
+	private Utf8Text(ByteBuffer bytes, int offset, int length, int[] wideChars, int[] wideBytes) {
+		this.bytes = bytes;
+		this.offset = offset;
+		this.end = offset + length;
+		this.length = length;
+		this.wideChars = wideChars;
+		this.wideBytes = wideBytes;
+	}
+
+	/**
+	 * Tells if every char is a single ASCII byte.
+	 *
+	 * @return
+	 */
+	boolean isAscii() {
+		return wideChars == null;
+	}
+
+	public int length() {
+		return length;
+	}
+
+	public char charAt(int index) {
+		if (index < 0 || index >= length)
+			throw new IndexOutOfBoundsException(String.valueOf(index));
+		if (wideChars == null)
+			return (char) bytes.get(offset + index);
+
+		int k = Arrays.binarySearch(wideChars, index);
+		if (k >= 0)
+			return decode(k);
+		// The char is ASCII, a number of chars after the last wide one before it.
+		return (char) bytes.get(byteIndex(index));
+	}
+
+	/**
+	 * Returns the index of the next "\n" or "\r" from the given index, or -1 if there is none.
+	 * The bytes are searched, as these never appear inside a longer UTF-8 sequence.
+	 *
+	 * @param from
+	 * @return
+	 */
+	int nextLineBreak(int from) {
+		if (from >= length)
+			return -1;
+		int at = indexOfLineBreak(bytes, byteIndex(from), end);
+		return at == -1 ? -1 : charIndex(at);
+	}
+
+	/**
+	 * Returns the index of the first "\n" or "\r" byte from from to end (exclusive), or -1 if there is none.
+	 * The bytes are read 8 at a time.
+	 *
+	 * @param bytes
+	 * @param from
+	 * @param end
+	 * @return
+	 */
+	static int indexOfLineBreak(ByteBuffer bytes, int from, int end) {
+		boolean bigEndian = bytes.order() == ByteOrder.BIG_ENDIAN;
+		int i = from;
+		for (; i + 8 <= end; i += 8) {
+			long v = bytes.getLong(i);
+			long found = zeroBytes(v ^ LF_BYTES) | zeroBytes(v ^ CR_BYTES);
+			if (found != 0)
+				return i + (bigEndian ? Long.numberOfLeadingZeros(found) : Long.numberOfTrailingZeros(found)) / 8;
+		}
+		for (; i < end; i++) {
+			byte b = bytes.get(i);
+			if (b == '\n' || b == '\r')
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the high bit of every byte of v that is zero, and no other bit.
+	 * Unlike (v - 0x01..) & ~v, no borrow runs from one byte into the next, so the first one found is exact.
+	 *
+	 * @param v
+	 * @return
+	 */
+	private static long zeroBytes(long v) {
+		return ~(((v & LOW_BITS) + LOW_BITS) | v | LOW_BITS);
+	}
+
+	/**
+	 * Returns the absolute index in bytes of the first byte of a char.
+	 *
+	 * @param index
+	 * @return
+	 */
+	private int byteIndex(int index) {
+		if (wideChars == null)
+			return offset + index;
+		int k = Arrays.binarySearch(wideChars, index);
+		if (k >= 0)
+			return offset + wideBytes[k];
+		k = -k - 2;
+		if (k < 0)
+			return offset + index;
+		return offset + wideEnd(k) + index - wideChars[k] - 1;
+	}
+
+	/**
+	 * Returns the index of the char of an ASCII byte, from its absolute index in bytes.
+	 *
+	 * @param at
+	 * @return
+	 */
+	private int charIndex(int at) {
+		if (wideChars == null)
+			return at - offset;
+		int k = Arrays.binarySearch(wideBytes, at - offset);
+		// The byte is ASCII, after the last wide char before it. Both halves of a pair are before it.
+		k = k >= 0 ? k : -k - 2;
+		if (k < 0)
+			return at - offset;
+		while (k + 1 < wideBytes.length && wideBytes[k + 1] == wideBytes[k])
+			k++;
+		return wideChars[k] + 1 + at - offset - wideEnd(k);
+	}
+
+	public CharSequence subSequence(int start, int end) {
+		if (start < 0 || end > length || start > end)
+			throw new IndexOutOfBoundsException(start + ", " + end);
+		if (wideChars == null)
+			return new Utf8Text(bytes, offset + start, end - start, null, null);
+		StringBuilder sb = new StringBuilder(end - start);
+		appendTo(sb, start, end);
+		return sb.toString();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder(length);
+		appendTo(sb, 0, length);
+		return sb.toString();
+	}
+
+	/**
+	 * Decodes the chars from start to end (exclusive) into sb, reading the bytes in order.
+	 *
+	 * @param sb
+	 * @param start
+	 * @param end
+	 */
+	private void appendTo(StringBuilder sb, int start, int end) {
+		if (wideChars == null) {
+			for (int i = start; i < end; i++)
+				sb.append((char) bytes.get(offset + i));
+			return;
+		}
+		int k = Arrays.binarySearch(wideChars, start);
+		if (k < 0)
+			k = -k - 1;
+		for (int i = start; i < end; ) {
+			if (k < wideChars.length && wideChars[k] == i) {
+				sb.append(decode(k));
+				k++;
+				i++;
+			} else {
+				// ASCII up to the next wide char.
+				int next = k < wideChars.length ? Math.min(end, wideChars[k]) : end;
+				int at = k == 0 ? offset + i : offset + wideEnd(k - 1) + i - wideChars[k - 1] - 1;
+				for (; i < next; i++)
+					sb.append((char) bytes.get(at++));
+			}
+		}
+	}
+
+	/**
+	 * Returns the offset, from offset, of the byte after wide char k.
+	 * For the high half of a surrogate pair, the low half is at the same bytes.
+	 *
+	 * @param k
+	 * @return
+	 */
+	private int wideEnd(int k) {
+		int at = wideBytes[k];
+		if (k + 1 < wideBytes.length && wideBytes[k + 1] == at)
+			return at;
+		return at + Math.abs(sequenceLength(bytes, offset + at, end));
+	}
+
+	private char decode(int k) {
+		int at = offset + wideBytes[k];
+		int b0 = bytes.get(at) & 0xFF;
+		switch (sequenceLength(bytes, at, end)) {
+		case 2:
+			return (char) (((b0 & 0x1F) << 6) | (bytes.get(at + 1) & 0x3F));
+		case 3:
+			return (char) (((b0 & 0x0F) << 12) | ((bytes.get(at + 1) & 0x3F) << 6) | (bytes.get(at + 2) & 0x3F));
+		case 4:
+			int codePoint = ((b0 & 0x07) << 18) | ((bytes.get(at + 1) & 0x3F) << 12)
+					| ((bytes.get(at + 2) & 0x3F) << 6) | (bytes.get(at + 3) & 0x3F);
+			// The first of the two chars at these bytes is the high surrogate.
+			boolean high = k + 1 < wideBytes.length && wideBytes[k + 1] == wideBytes[k];
+			return high ? Character.highSurrogate(codePoint) : Character.lowSurrogate(codePoint);
+		default:
+			return REPLACEMENT;
+		}
+	}
+
+	/**
+	 * Returns the length of the UTF-8 sequence starting at a byte that is not ASCII or, 
+	 * if it is not valid, minus the length of its malformed start, which reads as one U+FFFD.
+	 *
+	 * @param bytes
+	 * @param at
+	 * @param end
+	 * @return
+	 */
+	private static int sequenceLength(ByteBuffer bytes, int at, int end) {
+		int b0 = bytes.get(at) & 0xFF;
+		int length;
+		// Bounds of the second byte, which rule out overlong encodings and code points above U+10FFFF.
+		int min = 0x80;
+		int max = 0xBF;
+		if (b0 >= 0xC2 && b0 <= 0xDF) {
+			length = 2;
+		} else if (b0 >= 0xE0 && b0 <= 0xEF) {
+			length = 3;
+			if (b0 == 0xE0)
+				min = 0xA0;
+		} else if (b0 >= 0xF0 && b0 <= 0xF4) {
+			length = 4;
+			if (b0 == 0xF0)
+				min = 0x90;
+			else if (b0 == 0xF4)
+				max = 0x8F;
+		} else {
+			return -1;
+		}
+		if (at + 1 >= end)
+			return -1;
+		int b1 = bytes.get(at + 1) & 0xFF;
+		if (b1 < min || b1 > max)
+			return -1;
+		for (int i = 2; i < length; i++) {
+			if (at + i >= end || !isContinuation(bytes.get(at + i)))
+				return -i;
+		}
+		// An encoded surrogate is malformed as a whole.
+		if (b0 == 0xED && b1 >= 0xA0)
+			return -3;
+		return length;
+	}
+
+	private static boolean isContinuation(byte b) {
+		return (b & 0xC0) == 0x80;
+	}
+}
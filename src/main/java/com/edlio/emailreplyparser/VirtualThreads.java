@@ -0,0 +1,34 @@
+package com.edlio.emailreplyparser;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * The default executor of the async parses: a new virtual thread for each task where the
+ * runtime has them (Java 21 and later), the common {@link ForkJoinPool} otherwise.
+ *
+ * The library is built for Java 11, so the virtual thread executor is looked up by reflection,
+ * once, the first time it is needed.
+ */
+class VirtualThreads {
+	private static final Executor EXECUTOR = create();
+
+	private VirtualThreads() {
+	}
+
+	static Executor executor() {
+		return EXECUTOR;
+	}
+
+	private static Executor create() {
+		try {
+			Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (Executor) method.invoke(null);
+		} catch (Exception e) {
+			// Before Java 21, or with virtual threads disabled.
+			return ForkJoinPool.commonPool();
+		}
+	}
+}
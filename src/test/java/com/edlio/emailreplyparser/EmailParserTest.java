@@ -2,13 +2,43 @@ package com.edlio.emailreplyparser;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
 import org.apache.commons.lang3.StringUtils;
 import org.junit.Test;
 
@@ -132,6 +162,23 @@ public class EmailParserTest {
 		
 	}
 	
+	@Test
+	public void testHandlesAllLineEndings() {
+		String text = FixtureGetter.getFixture("email_3.txt");
+		List<Fragment> expected = new EmailParser().parse(text).getFragments();
+		
+		for (String lineEnding : new String[] {"\r\n", "\r", "  \n"}) {
+			List<Fragment> fragments = new EmailParser().parse(text.replace("\n", lineEnding)).getFragments();
+			assertEquals(expected.size(), fragments.size());
+			for (int i = 0; i < expected.size(); i++) {
+				assertEquals(expected.get(i).getContent(), fragments.get(i).getContent());
+				assertEquals(expected.get(i).isHidden(), fragments.get(i).isHidden());
+				assertEquals(expected.get(i).isQuoted(), fragments.get(i).isQuoted());
+				assertEquals(expected.get(i).isSignature(), fragments.get(i).isSignature());
+			}
+		}
+	}
+	
 	@Test
 	public void testComplexBodyWithOnlyOneFragment() {
 		Email email = new EmailParser().parse(FixtureGetter.getFixture("email_5.txt"));
@@ -208,8 +255,9 @@ public class EmailParserTest {
 	
 	@Test
 	public void testCustomQuoteHeader() {
-		EmailParser parser = new EmailParser();
-		parser.getQuoteHeadersRegex().add("^(\\d{4}(.+)rta:)");
+		EmailParser parser = EmailParser.builder()
+				.addQuoteHeaderRegex("^(\\d{4}(.+)rta:)")
+				.build();
 		
 		Email email = parser.parse(FixtureGetter.getFixture("email_custom_quote_header.txt"));
 		assertEquals("Thank you!", email.getVisibleText());
@@ -217,13 +265,733 @@ public class EmailParserTest {
 	
 	@Test
 	public void testCustomQuoteHeader2() {
-		EmailParser parser = new EmailParser();
-		parser.getQuoteHeadersRegex().add("^(From\\: .+ .+test\\@webdomain\\.com.+)");
+		EmailParser parser = EmailParser.builder()
+				.addQuoteHeaderRegex("^(From\\: .+ .+test\\@webdomain\\.com.+)")
+				.build();
 		
 		Email email = parser.parse(FixtureGetter.getFixture("email_customer_quote_header_2.txt"));
 		assertEquals("Thank you very much.", email.getVisibleText());
 	}
 	
+	@Test
+	public void testBuilderDoesNotChangeBuiltParser() {
+		EmailParser.Builder builder = EmailParser.builder();
+		EmailParser parser = builder.build();
+		builder.addQuoteHeaderRegex("^(\\d{4}(.+)rta:)").maxParagraphLines(1);
+		
+		assertEquals(EmailParser.DEFAULT_QUOTE_HEADERS_REGEX, parser.getQuoteHeadersRegex());
+		assertEquals(6, parser.getMaxParagraphLines());
+		assertEquals(200, parser.getMaxNumCharsEachLine());
+	}
+	
+	@Test(expected = UnsupportedOperationException.class)
+	public void testQuoteHeadersRegexIsFrozen() {
+		new EmailParser().getQuoteHeadersRegex().add("^(\\d{4}(.+)rta:)");
+	}
+	
+	@Test
+	public void testReusedParserGivesSameResult() {
+		EmailParser parser = new EmailParser();
+		String first = parser.parse(FixtureGetter.getFixture("email_2.txt")).getVisibleText();
+		parser.parse(FixtureGetter.getFixture("email_3.txt"));
+		
+		Email email = parser.parse(FixtureGetter.getFixture("email_2.txt"));
+		assertEquals(6, email.getFragments().size());
+		assertEquals(first, email.getVisibleText());
+	}
+	
+	@Test
+	public void testQuoteHeaderMatcherReportsMatchingRule() {
+		QuoteHeaderMatcher matcher = new QuoteHeaderMatcher(Arrays.asList(
+				"^(On\\s(.{1,500})wrote:)",
+				"^(From:\\s)(\\w+)\\s\\2",
+				"Fra:[^\\n]+\\n?([^\\n]+\\n?){0,2}Til:[^\\n]+"));
+		
+		assertEquals(0, matcher.find("On Tue, Ann wrote:"));
+		assertEquals(1, matcher.find("From: ann ann"));
+		assertEquals(2, matcher.find("Hei\nFra: Ann\nDato: i dag\nTil: Bob"));
+		assertEquals(-1, matcher.find("From: ann bob"));
+	}
+	
+	@Test
+	public void testQuoteHeaderAutomatonMatchesPattern() {
+		List<String> rules = new ArrayList<String>(EmailParser.DEFAULT_QUOTE_HEADERS_REGEX);
+		for (String language : Arrays.asList("da", "de", "en", "es", "fr", "no", "sv")) {
+			rules.addAll(LocalePack.forLanguage(language).getQuoteHeaders());
+			rules.addAll(LocalePack.forLanguage(language).getSeparators());
+		}
+		QuoteHeaderMatcher matcher = new QuoteHeaderMatcher(rules);
+		List<Pattern> patterns = new ArrayList<Pattern>();
+		for (String rule : rules)
+			patterns.add(Pattern.compile(rule, QuoteHeaderMatcher.FLAGS));
+		
+		for (String fixture : new File("src/test/fixtures").list()) {
+			String[] lines = FixtureGetter.getFixture(fixture).split("\n");
+			// Paragraphs of up to six lines, and a longer text, past the repeats of 500 the DFA relaxes.
+			for (int first = 0; first < Math.min(lines.length, 40); first++) {
+				for (int count : first == 0 ? new int[] { 1, 2, 6, 40 } : new int[] { 1, 2, 6 }) {
+					String text = StringUtils.join(lines, "\n", first, Math.min(lines.length, first + count));
+					boolean expected = false;
+					for (Pattern pattern : patterns)
+						expected |= pattern.matcher(text).find();
+					assertEquals(fixture + ": " + text, expected, matcher.find(text) != -1);
+				}
+			}
+		}
+	}
+	
+	@Test
+	public void testQuoteHeaderPrefilter() {
+		assertEquals(new HashSet<String>(Arrays.asList("wrote:")), 
+				LiteralPrefilter.requiredLiterals(RegexParser.parse("^(On\\s(.{1,500})wrote:)", QuoteHeaderMatcher.FLAGS)));
+		assertEquals(new HashSet<String>(Arrays.asList("skrev", "@")), 
+				LiteralPrefilter.requiredLiterals(RegexParser.parse(EmailParser.DEFAULT_QUOTE_HEADERS_REGEX.get(1), QuoteHeaderMatcher.FLAGS)));
+		
+		QuoteHeaderMatcher matcher = new QuoteHeaderMatcher(EmailParser.DEFAULT_QUOTE_HEADERS_REGEX);
+		Lines lines = Lines.scan("Thanks a lot\nOn Tue, Ann\nwrote:\nSee you");
+		assertFalse(matcher.mayMatch(lines, 0, 1));
+		assertFalse(matcher.mayMatch(lines, 3, 4));
+		assertTrue(matcher.mayMatch(lines, 1, 3));
+	}
+	
+	@Test
+	public void testLineClasses() {
+		Lines lines = Lines.scan("Hi\n\n> quoted\n>>> deep\n-- \nSent from my phone\n __\n\u2014 Ann\n - not\n  \t");
+		assertEquals(0, lines.lineClass(0));
+		assertEquals(Lines.BLANK, lines.lineClass(1));
+		assertEquals(1, lines.quoteDepth(2));
+		assertEquals(3, lines.quoteDepth(3));
+		assertEquals(Lines.BLANK, lines.lineClass(9));
+		
+		// A line is a signature exactly when the signature pattern matches it,
+		// and only "Sent from my " lines are left to the shorter pattern.
+		for (int i = 0; i < lines.count(); i++) {
+			boolean signature = EmailParser.SIG_PATTERN.matcher(lines.line(i)).find();
+			int lineClass = lines.lineClass(i);
+			boolean classified = (lineClass & Lines.SENT_FROM) != 0 
+					? EmailParser.SENT_FROM_PATTERN.matcher(lines.line(i)).find() 
+					: (lineClass & Lines.SIGNATURE) != 0;
+			assertEquals(String.valueOf(i), signature, classified);
+		}
+		assertEquals(Lines.SENT_FROM, lines.lineClass(5));
+	}
+	
+	@Test
+	public void testSignatureClassMatchesPattern() {
+		String[] samples = { "-", "--", "-- ", "-a", "-\u00e9", "- a", "_", "__", "_a", " __", "\t--", " -a", "  --", 
+				"\u000B__", "\f--", "\u2013", "\u2014Ann", "\u2012", "S", "Sent", "Sent from my", "Sent from my iPhone", 
+				"Sent from my Samsung Galaxy S9", "Sent from my very old Nokia phone", "Sent from my: phone", "Sent from my  ", 
+				"Sent from my phone\u0085", "Sent from my \u00e9", "sent from my iPhone", "Signed", ">-- ", "A --" };
+		for (String sample : samples) {
+			int signatureClass = Lines.signatureClass(sample, 0, sample.length());
+			boolean classified = signatureClass == Lines.SENT_FROM 
+					? EmailParser.SENT_FROM_PATTERN.matcher(sample).find() 
+					: signatureClass == Lines.SIGNATURE;
+			assertEquals(sample, EmailParser.SIG_PATTERN.matcher(sample).find(), classified);
+		}
+	}
+	
+	@Test
+	public void testLinearTimeEngineGivesSameFragments() {
+		EmailParser javaRegex = new EmailParser();
+		EmailParser linear = EmailParser.builder().regexEngine(RegexEngine.LINEAR_TIME).build();
+		
+		for (String fixture : new File("src/test/fixtures").list()) {
+			String text = FixtureGetter.getFixture(fixture);
+			List<Fragment> expected = javaRegex.parse(text).getFragments();
+			List<Fragment> fragments = linear.parse(text).getFragments();
+			
+			assertEquals(fixture, expected.size(), fragments.size());
+			for (int i = 0; i < expected.size(); i++) {
+				assertEquals(fixture, expected.get(i).getContent(), fragments.get(i).getContent());
+				assertEquals(fixture, expected.get(i).isHidden(), fragments.get(i).isHidden());
+				assertEquals(fixture, expected.get(i).isQuoted(), fragments.get(i).isQuoted());
+				assertEquals(fixture, expected.get(i).isSignature(), fragments.get(i).isSignature());
+			}
+		}
+	}
+	
+	@Test(timeout = 10000)
+	public void testLinearTimeEngineOnBacktrackingInput() {
+		// Takes minutes with java.util.regex: (\s*\w+){1,3}$ tries every split of the word.
+		String line = "Sent from my " + StringUtils.repeat("a", 3000) + "!";
+		EmailParser parser = EmailParser.builder().regexEngine(RegexEngine.LINEAR_TIME).build();
+		
+		Email email = parser.parse("Hi\n\n" + line + "\n" + line);
+		assertEquals("Hi\n\n" + line + "\n" + line, email.getVisibleText());
+	}
+	
+	@Test(timeout = 10000)
+	public void testTimeoutReturnsTruncatedEmail() {
+		String line = "Sent from my " + StringUtils.repeat("a", 3000) + "!";
+		EmailParser parser = EmailParser.builder().timeout(50, TimeUnit.MILLISECONDS).build();
+		
+		Email email = parser.parse("Hi\n\n" + line + "\n\n> quoted");
+		List<Fragment> fragments = email.getFragments();
+		
+		assertTrue(email.isTruncated());
+		assertEquals("Hi\n", fragments.get(0).getContent());
+		assertFalse(fragments.get(0).isHidden());
+		assertEquals(line, fragments.get(1).getContent());
+		assertTrue(fragments.get(2).isQuoted());
+		assertEquals("Hi\n\n" + line, email.getVisibleText());
+	}
+	
+	@Test
+	public void testTimeoutNotReachedGivesSameResult() {
+		EmailParser parser = EmailParser.builder().timeout(1, TimeUnit.MINUTES).build();
+		
+		for (String fixture : new File("src/test/fixtures").list()) {
+			String text = FixtureGetter.getFixture(fixture);
+			Email email = parser.parse(text);
+			
+			assertFalse(email.isTruncated());
+			assertEquals(fixture, new EmailParser().parse(text).getVisibleText(), email.getVisibleText());
+			assertEquals(fixture, new EmailParser().parse(text).getHiddenText(), email.getHiddenText());
+		}
+		assertEquals(1, parser.getTimeout(TimeUnit.MINUTES));
+		assertEquals(1, parser.toBuilder().build().getTimeout(TimeUnit.MINUTES));
+	}
+	
+	@Test
+	public void testFragmentOffsets() {
+		String text = "Hi,  \r\nthanks!\r\n\r\nOn Mon, Jan 1, 2024 at 9:00 AM, Bob wrote:\r\n> hello \r\n";
+		List<Fragment> fragments = new EmailParser().parse(text).getFragments();
+		
+		assertEquals(2, fragments.size());
+		assertEquals(0, fragments.get(0).getStart());
+		assertEquals(text.indexOf("\r\nOn Mon"), fragments.get(0).getEnd());
+		assertEquals("Hi,\nthanks!\n", fragments.get(0).getContent());
+		assertEquals(text.indexOf("\r\nOn Mon") + 2, fragments.get(1).getStart());
+		assertEquals(text.indexOf("hello") + 5, fragments.get(1).getEnd());
+		
+		StringBuilder sb = new StringBuilder(text);
+		Email email = new EmailParser().parse(sb);
+		sb.setLength(0);
+		assertEquals("Hi,\nthanks!", email.getVisibleText());
+	}
+	
+	@Test
+	public void testFragmentOffsetsCoverContent() {
+		for (String fixture : new File("src/test/fixtures").list()) {
+			String text = FixtureGetter.getFixture(fixture);
+			int previousEnd = 0;
+			for (Fragment fragment : new EmailParser().parse(text).getFragments()) {
+				assertTrue(fixture, fragment.getStart() >= previousEnd);
+				List<String> lines = new ArrayList<String>();
+				for (String line : text.substring(fragment.getStart(), fragment.getEnd()).split("\r\n|\n|\r", -1))
+					lines.add(StringUtils.stripEnd(line, null));
+				assertEquals(fixture, StringUtils.join(lines, "\n"), fragment.getContent());
+				previousEnd = fragment.getEnd();
+			}
+		}
+	}
+	
+	@Test
+	public void testWriteTextMatchesGetText() throws IOException {
+		for (String fixture : new File("src/test/fixtures").list()) {
+			String text = FixtureGetter.getFixture(fixture);
+			Email email = new EmailParser().parse(text);
+			
+			StringWriter visible = new StringWriter();
+			StringBuilder hidden = new StringBuilder();
+			email.writeVisibleText(visible);
+			email.writeHiddenText(hidden);
+			
+			assertEquals(fixture, email.getVisibleText(), visible.toString());
+			assertEquals(fixture, email.getHiddenText(), hidden.toString());
+			assertSame(email.getVisibleText(), email.getVisibleText());
+		}
+	}
+	
+	@Test
+	public void testParseReplyMatchesParse() {
+		EmailParser parser = new EmailParser();
+		EmailParser small = EmailParser.builder().maxParagraphLines(2).build();
+		
+		for (String fixture : new File("src/test/fixtures").list()) {
+			String text = FixtureGetter.getFixture(fixture);
+			assertEquals(fixture, parser.parse(text).getVisibleText(), parser.parseReply(text));
+			assertEquals(fixture, small.parse(text).getVisibleText(), small.parseReply(text));
+			// Trailing whitespace makes a blank last line, which is not part of the paragraph above it.
+			assertEquals(fixture, parser.parse(text + "  ").getVisibleText(), parser.parseReply(text + "  "));
+		}
+		
+		String thread = "Fine by me.\n\nOn Mon, Jan 1, 2024 at 9:00 AM, Bob wrote:\n" + StringUtils.repeat("> earlier message\n>\n", 1000);
+		assertEquals("Fine by me.", parser.parseReply(thread));
+	}
+	
+	@Test
+	public void testBlankLastLineIsNotInQuoteHeaderParagraph() throws IOException {
+		EmailParser parser = new EmailParser();
+		// The quote header paragraph has maxParagraphLines lines, then the text ends in a whitespace-only line.
+		String text = "Reply\n\nbob@example.com said\nx\nx\nx\nx\nx\n ";
+		
+		assertEquals("Reply", parser.parse(text).getVisibleText());
+		assertEquals("Reply", parser.parseReply(text));
+		assertEquals("Reply", parser.parse(new StringReader(text)).getVisibleText());
+		assertEquals("Reply", parser.parseReply(new StringReader(text)));
+		assertEquals("Reply", parser.parse(text, new ThreadHistory()).getVisibleText());
+		assertEquals(parser.parse(text.trim()).getVisibleText(), parser.parse(text).getVisibleText());
+	}
+	
+	@Test
+	public void testParseReaderMatchesParse() throws IOException {
+		EmailParser parser = new EmailParser();
+		
+		for (String fixture : new File("src/test/fixtures").list()) {
+			String text = FixtureGetter.getFixture(fixture);
+			List<Fragment> expected = parser.parse(text).getFragments();
+			List<Fragment> fragments = parser.parse(new StringReader(text)).getFragments();
+			assertEquals(fixture, expected.size(), fragments.size());
+			for (int i = 0; i < expected.size(); i++) {
+				assertEquals(fixture, expected.get(i).getContent(), fragments.get(i).getContent());
+				assertEquals(fixture, expected.get(i).getStart(), fragments.get(i).getStart());
+				assertEquals(fixture, expected.get(i).getEnd(), fragments.get(i).getEnd());
+				assertEquals(fixture, expected.get(i).isHidden(), fragments.get(i).isHidden());
+			}
+			assertEquals(fixture, parser.parseReply(text), parser.parseReply(new StringReader(text)));
+		}
+	}
+	
+	@Test
+	public void testParseReaderDiscardsHiddenFragments() throws IOException {
+		EmailParser parser = new EmailParser();
+		String thread = "Fine by me.\n\nOn Mon, Jan 1, 2024 at 9:00 AM, Bob wrote:\n" + StringUtils.repeat("> earlier message\n>\n", 1000) 
+				+ "\nSee you then.\n\n-- \nAlice\n";
+		
+		Email email = parser.parse(new StringReader(thread), true);
+		assertEquals(2, email.getFragments().size());
+		for (Fragment fragment : email.getFragments())
+			assertFalse(fragment.isHidden());
+		assertEquals(parser.parse(thread).getVisibleText(), email.getVisibleText());
+	}
+	
+	@Test
+	public void testParseUtf8BytesMatchesParse() throws IOException {
+		EmailParser parser = new EmailParser();
+		
+		for (String fixture : new File("src/test/fixtures").list()) {
+			String text = FixtureGetter.getFixture(fixture);
+			for (String variant : new String[] {text, text.replace("\n", "\r\n") + "\u00e9\ud83d\ude00 \u2014"}) {
+				List<Fragment> expected = parser.parse(variant).getFragments();
+				List<Fragment> fragments = parser.parse(variant.getBytes("UTF-8")).getFragments();
+				assertEquals(fixture, expected.size(), fragments.size());
+				for (int i = 0; i < expected.size(); i++) {
+					assertEquals(fixture, expected.get(i).getContent(), fragments.get(i).getContent());
+					assertEquals(fixture, expected.get(i).getStart(), fragments.get(i).getStart());
+					assertEquals(fixture, expected.get(i).isHidden(), fragments.get(i).isHidden());
+				}
+				assertEquals(fixture, parser.parseReply(variant), parser.parseReply(variant.getBytes("UTF-8")));
+			}
+		}
+		
+		// Malformed bytes read as U+FFFD, as when decoding them into a string.
+		byte[] malformed = {'H', 'i', (byte) 0xE2, (byte) 0x80, '\n', (byte) 0xFF, '\n'};
+		assertEquals(new String(malformed, "UTF-8").trim(), parser.parse(malformed).getVisibleText());
+	}
+	
+	@Test
+	public void testMailFileBodiesMatchParse() throws IOException {
+		EmailParser parser = new EmailParser();
+		String[] fixtures = new File("src/test/fixtures").list();
+		
+		File mbox = File.createTempFile("fixtures", ".mbox");
+		mbox.deleteOnExit();
+		Writer out = new OutputStreamWriter(new FileOutputStream(mbox), "UTF-8");
+		try {
+			for (String fixture : fixtures)
+				out.write("From sender@example.com Mon Jan  1 09:00:00 2024\nSubject: " + fixture + "\n\n" + FixtureGetter.getFixture(fixture) + "\n");
+		} finally {
+			out.close();
+		}
+		
+		List<CharSequence> bodies = MailFile.map(mbox).getBodies();
+		assertEquals(fixtures.length, bodies.size());
+		for (int i = 0; i < fixtures.length; i++) {
+			String text = FixtureGetter.getFixture(fixtures[i]);
+			assertEquals(fixtures[i], text + "\n", bodies.get(i).toString());
+			assertEquals(fixtures[i], parser.parse(text).getVisibleText(), parser.parse(bodies.get(i)).getVisibleText());
+		}
+		
+		File eml = File.createTempFile("email_em_dash", ".eml");
+		eml.deleteOnExit();
+		out = new OutputStreamWriter(new FileOutputStream(eml), "UTF-8");
+		try {
+			out.write("Subject: Re: Hello\r\n\r\n" + FixtureGetter.getFixture("email_em_dash.txt"));
+		} finally {
+			out.close();
+		}
+		bodies = MailFile.map(eml).getBodies();
+		assertEquals(1, bodies.size());
+		assertEquals("Thank you.", parser.parse(bodies.get(0)).getVisibleText());
+	}
+	
+	@Test
+	public void testParseAllKeepsInputOrder() {
+		EmailParser parser = new EmailParser();
+		List<String> texts = new ArrayList<String>();
+		for (int i = 0; i < 20; i++) {
+			for (String fixture : new File("src/test/fixtures").list())
+				texts.add(FixtureGetter.getFixture(fixture) + "\n" + i);
+		}
+		
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			List<Email> emails = parser.parseAll(texts, pool);
+			List<String> replies = parser.parseRepliesAll(texts, pool);
+			assertEquals(texts.size(), emails.size());
+			assertEquals(texts.size(), replies.size());
+			for (int i = 0; i < texts.size(); i++) {
+				assertEquals(parser.parse(texts.get(i)).getVisibleText(), emails.get(i).getVisibleText());
+				assertEquals(parser.parseReply(texts.get(i)), replies.get(i));
+			}
+		} finally {
+			pool.shutdown();
+		}
+		assertTrue(parser.parseAll(new ArrayList<String>()).isEmpty());
+	}
+	
+	@Test
+	public void testParseContextReuseMatchesParse() {
+		EmailParser parser = new EmailParser();
+		EmailParser linear = EmailParser.builder().regexEngine(RegexEngine.LINEAR_TIME).maxParagraphLines(3).build();
+		ParseContext context = new ParseContext();
+		
+		for (String fixture : new File("src/test/fixtures").list()) {
+			String text = FixtureGetter.getFixture(fixture);
+			for (EmailParser p : new EmailParser[] { parser, linear }) {
+				List<Fragment> expected = p.parse(text).getFragments();
+				List<Fragment> fragments = p.parse(text, context).getFragments();
+				assertEquals(fixture, expected.size(), fragments.size());
+				for (int i = 0; i < expected.size(); i++) {
+					assertEquals(fixture, expected.get(i).getContent(), fragments.get(i).getContent());
+					assertEquals(fixture, expected.get(i).getStart(), fragments.get(i).getStart());
+					assertEquals(fixture, expected.get(i).isHidden(), fragments.get(i).isHidden());
+				}
+				assertEquals(fixture, p.parseReply(text), p.parseReply(text, context));
+			}
+		}
+	}
+	
+	@Test
+	public void testThreadHistoryMatchesParse() {
+		EmailParser parser = new EmailParser();
+		ThreadHistory history = new ThreadHistory();
+		
+		String thread = "";
+		for (int i = 0; i < 5; i++) {
+			thread = "Reply " + i + "\n\n-- \nAgent\n\n-----Original Message-----\nFrom: bob@example.com\nSubject: case\n\n" + thread;
+			List<Fragment> expected = parser.parse(thread).getFragments();
+			List<Fragment> fragments = parser.parse(thread, history).getFragments();
+			if (i > 0)
+				assertTrue(history.getReusedLines() > 0);
+			assertEquals(expected.size(), fragments.size());
+			for (int j = 0; j < expected.size(); j++) {
+				assertEquals(expected.get(j).getContent(), fragments.get(j).getContent());
+				assertEquals(expected.get(j).getStart(), fragments.get(j).getStart());
+				assertEquals(expected.get(j).isHidden(), fragments.get(j).isHidden());
+				assertEquals(expected.get(j).isQuoted(), fragments.get(j).isQuoted());
+				assertEquals(expected.get(j).isSignature(), fragments.get(j).isSignature());
+			}
+		}
+		
+		for (String fixture : new File("src/test/fixtures").list()) {
+			String text = FixtureGetter.getFixture(fixture);
+			parser.parse(text, history);
+			assertEquals(fixture, parser.parse(text).getVisibleText(), parser.parse(text, history).getVisibleText());
+		}
+	}
+	
+	@Test
+	public void testParseCacheMatchesParse() {
+		EmailParser plain = new EmailParser();
+		ParseCache cache = ParseCache.maximumSize(1000);
+		EmailParser parser = EmailParser.builder().cache(cache).build();
+		EmailParser other = EmailParser.builder().cache(cache).maxParagraphLines(1).build();
+		
+		String[] fixtures = new File("src/test/fixtures").list();
+		for (int round = 0; round < 2; round++) {
+			for (String fixture : fixtures) {
+				String text = FixtureGetter.getFixture(fixture);
+				assertEquals(fixture, plain.parse(text).getVisibleText(), parser.parse(text).getVisibleText());
+				assertEquals(fixture, plain.parseReply(text), parser.parseReply(text));
+				assertEquals(fixture, plain.toBuilder().maxParagraphLines(1).build().parseReply(text), other.parseReply(text));
+			}
+		}
+		assertEquals(3 * fixtures.length, cache.getMissCount());
+		assertEquals(3 * fixtures.length, cache.getHitCount());
+		assertSame(cache, parser.toBuilder().build().getCache());
+	}
+	
+	@Test
+	public void testParseCacheKeepsResultWhenReplacementRejected() {
+		ParseCache cache = ParseCache.maximumWeight(100);
+		ParseCache.Key key = ParseCache.key("a", 0, ParseCache.EMAIL);
+		cache.put(key, "a", "old");
+		for (int i = 0; i < 9; i++) {
+			String body = "body " + i + "....";
+			ParseCache.Key other = ParseCache.key(body, 0, ParseCache.EMAIL);
+			cache.put(other, body, body);
+			cache.get(other, body);
+			cache.get(other, body);
+		}
+		
+		// Asked for less often than the results it would evict, the new result is not admitted.
+		cache.put(key, "a longer body of twenty", "new");
+		assertEquals("old", cache.get(key, "a"));
+		assertEquals(10, cache.size());
+	}
+
+	@Test
+	public void testLocalePacks() {
+		// The default quote headers are those of the English and Norwegian packs.
+		List<String> defaults = new ArrayList<String>();
+		for (String language : Arrays.asList("en", "no")) {
+			defaults.addAll(LocalePack.forLanguage(language).getQuoteHeaders());
+			defaults.addAll(LocalePack.forLanguage(language).getSeparators());
+		}
+		assertEquals(new HashSet<String>(EmailParser.DEFAULT_QUOTE_HEADERS_REGEX), new HashSet<String>(defaults));
+		
+		// Every rule keeps the literal prefilter of the matcher it is added to.
+		for (String language : Arrays.asList("da", "de", "en", "es", "fr", "no", "sv")) {
+			LocalePack pack = LocalePack.forLanguage(language);
+			assertSame(pack, LocalePack.forLanguage(language));
+			List<String> rules = new ArrayList<String>(pack.getQuoteHeaders());
+			rules.addAll(pack.getSeparators());
+			rules.addAll(pack.getSignatures());
+			for (String rule : rules)
+				assertFalse(rule, LiteralPrefilter.requiredLiterals(RegexParser.parse(rule, QuoteHeaderMatcher.FLAGS)).isEmpty());
+		}
+		
+		String text = "Danke!\n\nVon meinem iPhone gesendet\n\nVon: Max Mustermann\nGesendet: Montag, 12. M\u00e4rz 2024 10:00\n"
+				+ "An: Anna\nBetreff: Termin\n\nHallo Anna,\nwie w\u00e4re es mit Dienstag?\n";
+		EmailParser german = EmailParser.builder().locales("de").build();
+		assertEquals("Danke!", german.parseReply(text));
+		assertEquals(Arrays.asList("de"), german.toBuilder().build().getLocales());
+		assertEquals(text.trim(), new EmailParser().parseReply(text));
+		assertEquals("Danke!", EmailParser.builder().locales("de").regexEngine(RegexEngine.LINEAR_TIME).build().parseReply(text));
+		
+		EmailParser withDefaultPacks = EmailParser.builder().locales("en", "no").build();
+		for (String fixture : new File("src/test/fixtures").list()) {
+			String fixtureText = FixtureGetter.getFixture(fixture);
+			assertEquals(fixture, new EmailParser().parseReply(fixtureText), withDefaultPacks.parseReply(fixtureText));
+		}
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnknownLocalePack() {
+		EmailParser.builder().locales("xx").build();
+	}
+	
+	@Test
+	public void testHtmlToText() throws IOException {
+		String html = "<!DOCTYPE html><html><head><title>Re: Hi</title><style>p { margin: 0 }</style></head>"
+				+ "<body><h1>Title</h1><p>Fish &amp; chips&nbsp;&eacute;&#233;&#x263A;&#xa0;&mdash; &unknown; &#; <b>now</b><br>or<br/>later</p>"
+				+ "<!-- <p>comment</p> --><script>var a = '<p>';</script><div>Last<p>open</div>"
+				+ "<textarea>a &lt; <b></textarea></body></html>";
+		assertEquals("Title\n\nFish & chips \u00e9\u00e9\u263a \u2014 &unknown; &#; now\nor\nlater\n\nLastopen\n\na < <b>", 
+				HtmlToText.toText(html));
+		
+		// Read from a reader a few chars at a time, so that tags, references and comments are split across reads.
+		StringBuilder large = new StringBuilder();
+		for (int i = 0; i < 500; i++)
+			large.append(html, html.indexOf("<body>"), html.indexOf("</body>")).append(i).append("&#").append(i).append(";\u00a0");
+		final Reader markup = new StringReader(large.toString());
+		Reader trickle = new Reader() {
+			public int read(char[] cbuf, int off, int len) throws IOException {
+				return markup.read(cbuf, off, Math.min(len, 7));
+			}
+			
+			public void close() throws IOException {
+				markup.close();
+			}
+		};
+		HtmlToText text = new HtmlToText(trickle);
+		StringWriter read = new StringWriter();
+		char[] chunk = new char[5];
+		int n;
+		while ((n = text.read(chunk)) != -1)
+			read.write(chunk, 0, n);
+		text.close();
+		assertEquals(HtmlToText.toText(large), read.toString());
+	}
+	
+	@Test
+	public void testParseHtmlStopsAtQuoteContainer() throws IOException {
+		EmailParser parser = new EmailParser();
+		String[] quotes = {
+				// Gmail
+				"<div class=\"gmail_quote gmail_quote_container\"><div dir=\"ltr\" class=\"gmail_attr\">On Mon, Ann wrote:<br></div>"
+						+ "<blockquote class=\"gmail_quote\">Old text</blockquote></div>",
+				// Apple Mail
+				"<div><br><blockquote type=\"cite\"><div>On Mon, Ann wrote:</div><div>Old text</div></blockquote></div>",
+				// Thunderbird
+				"<div class=\"moz-cite-prefix\">On Mon, Ann wrote:<br></div><blockquote type=\"cite\" cite=\"mid:1\">Old text</blockquote>",
+				// Outlook on the web
+				"<hr style=\"display:inline-block;width:98%\" tabindex=\"-1\"><div id=\"divRplyFwdMsg\" dir=\"ltr\">"
+						+ "<b>From:</b> Ann<br><b>Sent:</b> Monday<br><b>To:</b> Bob<br><b>Subject:</b> Hi</div><div>Old text</div>",
+				// Outlook
+				"<div style='border:none;border-top:solid #E1E1E1 1.0pt;padding:3.0pt 0in 0in 0in'><p class=MsoNormal><b>From:</b> Ann</p></div>"
+						+ "<p class=MsoNormal>Old text</p>" };
+		for (String quote : quotes) {
+			String html = "<html><body><div dir=\"ltr\">Sounds good &amp; see you<br>Bob</div>" + quote + "</body></html>";
+			assertEquals(quote, "Sounds good & see you\nBob", parser.parseReplyHtml(html));
+			assertFalse(quote, parser.parseHtml(html).getHiddenText().contains("Old text"));
+			assertTrue(quote, HtmlToText.toText(html).contains("Old text"));
+		}
+		String outlook = "<p>Thanks<br>Bob</p>" + quotes[4];
+		assertEquals(parser.parseReplyHtml(outlook), parser.parseReplyHtml(new StringReader(outlook)));
+		assertEquals(parser.parseHtml(outlook).getVisibleText(), parser.parseHtml(new StringReader(outlook), false).getVisibleText());
+		assertEquals("Hi <b>", EmailReplyParser.parseReplyHtml("<p>Hi &lt;b&gt;</p><blockquote type=CITE>Old text</blockquote>"));
+		assertEquals("No quote", parser.parseReplyHtml("<blockquote>No quote</blockquote>"));
+	}
+	
+	@Test
+	public void testParseMessageSkipsAttachments() throws Exception {
+		EmailParser parser = new EmailParser();
+		String reply = "Sounds good\r\n\r\nOn Mon, Ann wrote:\r\n> Old text\r\n";
+		StringBuilder pdf = new StringBuilder();
+		for (int i = 0; i < 20000; i++)
+			pdf.append("JVBERi0xLjQKJcfsj6IKNSAwIG9iago8PC9MZW5ndGggNiAwIFIvRmlsdGVyIC9GbGF0ZURlY29k\r\n");
+		String attachment = "--b1\r\nContent-Type: application/pdf; name=\"a.pdf\"\r\nContent-Transfer-Encoding: base64\r\n"
+				+ "Content-Disposition: attachment;\r\n filename=\"a.pdf\"\r\n\r\n" + pdf;
+		String text = "--b1\r\nContent-Type: text/plain; charset=utf-8\r\n\r\n" + reply;
+		String headers = "From: Bob <bob@example.com>\r\nSubject: Re: Hi\r\nMIME-Version: 1.0\r\nContent-Type: multipart/mixed;\r\n\tboundary=\"b1\"\r\n\r\n";
+		String textFirst = headers + "Preamble\r\n" + text + attachment + "--b1--\r\n";
+		final AtomicLong read = new AtomicLong();
+		InputStream counted = new FilterInputStream(new ByteArrayInputStream(textFirst.getBytes(StandardCharsets.US_ASCII))) {
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int n = super.read(b, off, len);
+				read.addAndGet(Math.max(n, 0));
+				return n;
+			}
+		};
+		assertEquals("Sounds good", parser.parseReplyMessage(counted));
+		assertTrue(read.get() < 16384);
+		assertEquals("Sounds good", parser.parseReplyMessage(stream(headers + attachment + text + "--b1--\r\n")));
+		assertEquals(parser.parse(reply).getFragments().size(), parser.parseMessage(stream(textFirst)).getFragments().size());
+		assertEquals("Sounds good", parser.parseReply(new MimeMessage(Session.getInstance(new Properties()), stream(textFirst))));
+		
+		// Quoted-printable plain text is taken over HTML, and ISO-8859-1 is decoded.
+		String alternative = "Content-Type: multipart/mixed; boundary=outer\r\n\r\n--outer\r\n"
+				+ "Content-Type: multipart/alternative; boundary=inner\r\n\r\n--inner\r\n"
+				+ "Content-Type: text/plain; charset=ISO-8859-1\r\nContent-Transfer-Encoding: quoted-printable\r\n\r\n"
+				+ "Gr=F8nt lys, ses=\r\n i morgen\r\n\r\nOn Mon, Ann wrote:\r\n> Old text\r\n--inner\r\n"
+				+ "Content-Type: text/html\r\n\r\n<p>Other</p>\r\n--inner--\r\n--outer\r\n"
+				+ "Content-Type: image/png\r\n\r\niVBORw0KGgo=\r\n--outer--\r\n";
+		assertEquals("Gr\u00f8nt lys, ses i morgen", parser.parseReplyMessage(stream(alternative)));
+		assertEquals("Gr\u00f8nt lys, ses i morgen", parser.parseReply(new MimeMessage(Session.getInstance(new Properties()), stream(alternative))));
+		
+		String html = "Content-Type: text/html; charset=utf-8\r\n\r\n<div>Thanks<br>Bob</div><blockquote type=\"cite\">Old text</blockquote>\r\n";
+		assertEquals("Thanks\nBob", parser.parseReplyMessage(stream(html)));
+		assertEquals("Plain", parser.parseReplyMessage(stream("Subject: Hi\r\n\r\nPlain\r\n")));
+		assertEquals("", parser.parseReplyMessage(stream("Content-Type: multipart/mixed; boundary=b\r\n\r\n--b\r\nContent-Type: image/png\r\n\r\nx\r\n--b--\r\n")));
+	}
+	
+	private static InputStream stream(String message) {
+		return new ByteArrayInputStream(message.getBytes(StandardCharsets.US_ASCII));
+	}
+	
+	@Test
+	public void testParseAsyncMatchesParse() throws Exception {
+		final AtomicInteger tasks = new AtomicInteger();
+		Executor executor = new Executor() {
+			public void execute(Runnable command) {
+				tasks.incrementAndGet();
+				new Thread(command).start();
+			}
+		};
+		EmailParser parser = EmailParser.builder().executor(executor).build();
+		assertSame(executor, parser.getExecutor());
+		assertSame(executor, parser.toBuilder().build().getExecutor());
+		
+		String text = FixtureGetter.getFixture("email_1.txt");
+		assertEquals(parser.parse(text).getVisibleText(), parser.parseAsync(text).get().getVisibleText());
+		assertEquals(parser.parseReply(text), parser.parseReplyAsync(new StringBuilder(text)).get());
+		assertEquals(2, tasks.get());
+		
+		EmailParser defaultParser = new EmailParser();
+		assertEquals(defaultParser.parseReply(text), defaultParser.parseReplyAsync(text).get(10, TimeUnit.SECONDS));
+	}
+	
+	@Test
+	public void testParseProcessorRespectsDemand() throws Exception {
+		EmailParser parser = new EmailParser();
+		final List<String> texts = new ArrayList<String>();
+		for (String fixture : new File("src/test/fixtures").list())
+			texts.add(FixtureGetter.getFixture(fixture));
+		
+		final AtomicLong requested = new AtomicLong();
+		Flow.Publisher<CharSequence> publisher = new Flow.Publisher<CharSequence>() {
+			public void subscribe(final Flow.Subscriber<? super CharSequence> subscriber) {
+				subscriber.onSubscribe(new Flow.Subscription() {
+					private int next;
+					
+					public void request(long n) {
+						requested.addAndGet(n);
+						for (long i = 0; i < n && next < texts.size(); i++)
+							subscriber.onNext(texts.get(next++));
+						if (next == texts.size())
+							subscriber.onComplete();
+					}
+					
+					public void cancel() {
+					}
+				});
+			}
+		};
+		
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			ParseProcessor<String> processor = ParseProcessor.replies(parser, executor, 3);
+			final List<String> replies = new CopyOnWriteArrayList<String>();
+			final CountDownLatch first = new CountDownLatch(1);
+			final CountDownLatch done = new CountDownLatch(1);
+			final AtomicReference<Flow.Subscription> subscription = new AtomicReference<Flow.Subscription>();
+			processor.subscribe(new Flow.Subscriber<String>() {
+				public void onSubscribe(Flow.Subscription s) {
+					subscription.set(s);
+				}
+				
+				public void onNext(String item) {
+					replies.add(item);
+					first.countDown();
+				}
+				
+				public void onError(Throwable throwable) {
+				}
+				
+				public void onComplete() {
+					done.countDown();
+				}
+			});
+			publisher.subscribe(processor);
+			
+			// Nothing asked for: only maxInFlight emails are taken from upstream, when subscribing.
+			assertEquals(3, requested.get());
+			assertTrue(replies.isEmpty());
+			
+			// The email passed on is replaced upstream right after it is delivered.
+			subscription.get().request(1);
+			assertTrue(first.await(10, TimeUnit.SECONDS));
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+			while (requested.get() < 4 && System.nanoTime() < deadline)
+				Thread.sleep(1);
+			assertEquals(4, requested.get());
+			assertEquals(1, replies.size());
+			
+			subscription.get().request(Long.MAX_VALUE);
+			assertTrue(done.await(10, TimeUnit.SECONDS));
+			assertEquals(texts.size(), replies.size());
+			for (int i = 0; i < texts.size(); i++)
+				assertEquals(parser.parseReply(texts.get(i)), replies.get(i));
+		} finally {
+			executor.shutdown();
+		}
+	}
+	
 	@Test
 	public void testAbnormalQuoteHeader1() {
 		EmailParser parser = new EmailParser();